@@ -0,0 +1,148 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A small benchmark harness in the spirit of JMH, for trees without a build that could pull JMH in.
+ *
+ * A benchmark is a Fixture creating one Operation per thread. Every iteration runs all threads for a fixed time
+ * after a warm-up, counts completed operations, and reads the bytes each thread allocated from the JVM's
+ * ThreadMXBean, so a result is throughput (ops/s, mean and spread over iterations) and allocation (bytes/op).
+ * Operations return a value that is folded into a sink so the JIT cannot drop their work.
+ *
+ * Tuning: -Dbench.warmup=ms, -Dbench.time=ms (per iteration), -Dbench.iterations=n, -Dbench.format=text|json.
+ */
+class Bench {
+    static final long WARMUP_MILLIS = Long.getLong("bench.warmup", 1000);
+    static final long ITERATION_MILLIS = Long.getLong("bench.time", 1000);
+    static final int ITERATIONS = Integer.getInteger("bench.iterations", 3);
+    static final boolean JSON = "json".equalsIgnoreCase(System.getProperty("bench.format"));
+    private static final int BATCH = 64; // operations between clock reads
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final PrintStream OUT = System.out; // results still go here if a benchmark silences System.out
+    static volatile long sink;
+
+    /**
+     * one unit of work
+     */
+    interface Operation {
+        long run() throws Exception;
+    }
+
+    /**
+     * creates each thread's operation, state that must not be shared is created here
+     */
+    interface Fixture {
+        Operation create(int thread) throws Exception;
+    }
+
+    /**
+     * runs a benchmark and prints its result
+     * @param name
+     * @param threads number of threads running operations at once
+     * @param fixture
+     */
+    static void run(String name, int threads, Fixture fixture) throws Exception {
+        List<Operation> operations = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            operations.add(fixture.create(i));
+        }
+        measure(operations, WARMUP_MILLIS);
+        double[] throughput = new double[ITERATIONS];
+        double allocated = 0;
+        long operationsDone = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long[] sample = measure(operations, ITERATION_MILLIS);
+            throughput[i] = sample[0] * 1e9 / sample[2];
+            operationsDone += sample[0];
+            allocated += sample[1];
+        }
+        report(name, threads, throughput, operationsDone == 0 ? 0 : allocated / operationsDone);
+    }
+
+    /**
+     * @return {operations, bytes allocated, elapsed nanos}
+     */
+    private static long[] measure(List<Operation> operations, long millis) throws Exception {
+        int threads = operations.size();
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        long[] counts = new long[threads];
+        long[] allocated = new long[threads];
+        Exception[] errors = new Exception[1];
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            int index = i;
+            Thread worker = new Thread(() -> {
+                Operation operation = operations.get(index);
+                long id = Thread.currentThread().getId();
+                long local = 0;
+                long count = 0;
+                try {
+                    ready.countDown();
+                    go.await();
+                    long before = THREADS.getThreadAllocatedBytes(id);
+                    while (running.get()) {
+                        for (int j = 0; j < BATCH; j++) {
+                            local += operation.run();
+                        }
+                        count += BATCH;
+                    }
+                    allocated[index] = THREADS.getThreadAllocatedBytes(id) - before;
+                } catch (Exception e) {
+                    errors[0] = e;
+                }
+                counts[index] = count;
+                sink += local;
+            }, "bench-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        Thread.sleep(millis);
+        running.set(false);
+        for (Thread i : workers) {
+            i.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (errors[0] != null) {
+            throw errors[0];
+        }
+        long total = 0;
+        long bytes = 0;
+        for (int i = 0; i < threads; i++) {
+            total += counts[i];
+            bytes += allocated[i];
+        }
+        return new long[]{total, bytes, elapsed};
+    }
+
+    private static void report(String name, int threads, double[] throughput, double bytesPerOp) {
+        double mean = 0;
+        for (double i : throughput) {
+            mean += i;
+        }
+        mean /= throughput.length;
+        double variance = 0;
+        for (double i : throughput) {
+            variance += (i - mean) * (i - mean);
+        }
+        double stddev = throughput.length > 1 ? Math.sqrt(variance / (throughput.length - 1)) : 0;
+        if (JSON) {
+            OUT.printf(Locale.ROOT, "{\"benchmark\":\"%s\",\"threads\":%d,\"opsPerSecond\":%.1f,\"stddev\":%.1f,\"bytesPerOp\":%.1f}%n",
+                    name, threads, mean, stddev, bytesPerOp);
+        } else {
+            OUT.printf(Locale.ROOT, "%-48s %3d %16.0f ops/s  +- %5.1f%%  %10.1f B/op%n",
+                    name, threads, mean, mean == 0 ? 0 : 100 * stddev / mean, bytesPerOp);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Micro-benchmarks of the download hot paths: token buckets, metadata queries, chunk reads, the queue between
+ * getters and the writer, and the writer's write-and-checkpoint loop.
+ *
+ * usage: java -cp out HotPathBench [NAME-FILTER]
+ * the FileWriter benchmark writes (and then removes) idc-bench-writer.bin in the working directory.
+ */
+public class HotPathBench {
+    private static final long GB = 1L << 30;
+    private static final int CHUNK = HTTPRangeGetter.CHUNK_SIZE;
+    private static String filter = "";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            filter = args[0];
+        }
+        tokenBucket();
+        metadata();
+        readChunk();
+        queueHandOff();
+        fileWriter();
+    }
+
+    private static boolean selected(String name) {
+        return name.contains(filter);
+    }
+
+    private static void tokenBucket() throws Exception {
+        //a rate so high that take() never parks, so what is measured is the accounting itself
+        long fast = 1L << 50;
+        for (int threads : new int[]{1, 4, 16}) {
+            if (selected("TokenBucket.take unlimited")) {
+                TokenBucket bucket = new TokenBucket();
+                Bench.run("TokenBucket.take unlimited", threads, t -> () -> { bucket.take(CHUNK); return 1; });
+            }
+            if (selected("TokenBucket.take limited")) {
+                TokenBucket bucket = new TokenBucket(fast, fast);
+                Bench.run("TokenBucket.take limited", threads, t -> () -> { bucket.take(CHUNK); return 1; });
+            }
+            if (selected("TokenBucket.take tree")) {
+                TokenBucket global = new TokenBucket(fast, fast);
+                TokenBucket origin = new TokenBucket(fast, fast, global);
+                TokenBucket download = new TokenBucket(fast, fast, global);
+                Bench.run("TokenBucket.take tree", threads, t -> {
+                    TokenBucket connection = new TokenBucket(fast, fast, download, origin);
+                    return () -> { connection.take(CHUNK); return 1; };
+                });
+            }
+            if (selected("TokenBucket.add")) {
+                TokenBucket bucket = new TokenBucket(fast, fast);
+                Bench.run("TokenBucket.add", threads, t -> () -> { bucket.add(CHUNK); return 1; });
+            }
+        }
+    }
+
+    private static void metadata() throws Exception {
+        for (long size : new long[]{GB, 10 * GB, 100 * GB}) {
+            String suffix = " " + (size / GB) + "GB";
+            DownloadableMetadata metadata = halfDone(size);
+            if (selected("Metadata.getMissingRange" + suffix)) {
+                Bench.run("Metadata.getMissingRange" + suffix, 1, t -> () -> {
+                    Range range = metadata.getMissingRange();
+                    if (range == null) {
+                        metadata.ResetPoint();
+                        return 0;
+                    }
+                    return range.getStart();
+                });
+            }
+            if (selected("Metadata.isCompleted" + suffix)) {
+                Bench.run("Metadata.isCompleted" + suffix, 1, t -> () -> metadata.isCompleted() ? 1 : 0);
+            }
+            if (selected("Metadata.getDone" + suffix)) {
+                Bench.run("Metadata.getDone" + suffix, 1, t -> metadata::getDone);
+            }
+        }
+    }
+
+    /**
+     * @return metadata of a file where every other 4 MB block is done, the worst realistic fragmentation
+     */
+    private static DownloadableMetadata halfDone(long size) {
+        DownloadableMetadata metadata = new DownloadableMetadata("http://bench/idc-bench.bin", size, CHUNK);
+        long block = 4L << 20;
+        for (long i = 0; i < size; i += 2 * block) {
+            metadata.addRange(new Range(i, Math.min(size, i + block) - 1));
+        }
+        return metadata;
+    }
+
+    private static void readChunk() throws Exception {
+        byte[] content = new byte[1 << 20];
+        for (int segment : new int[]{1460, 16384}) {
+            String name = "HTTPRangeGetter.readChunk channel " + segment + "B reads";
+            if (selected(name)) {
+                Bench.run(name, 1, t -> {
+                    ReadableByteChannel channel = new EndlessChannel(content, segment);
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK);
+                    return () -> HTTPRangeGetter.readChunk(channel, buffer);
+                });
+            }
+        }
+        if (selected("HTTPRangeGetter.readChunk stream")) {
+            Bench.run("HTTPRangeGetter.readChunk stream", 1, t -> {
+                InputStream stream = new EndlessStream(content);
+                byte[] data = new byte[CHUNK];
+                return () -> HTTPRangeGetter.readChunk(stream, data);
+            });
+        }
+    }
+
+    private static void queueHandOff() throws Exception {
+        if (!selected("Chunk queue hand-off")) {
+            return;
+        }
+        for (int producers : new int[]{1, 4, 16}) {
+            ChunkPool pool = new ChunkPool(CHUNK);
+            ChunkQueue queue = new ChunkQueue();
+            AtomicBoolean stopped = new AtomicBoolean();
+            Thread consumer = new Thread(() -> {
+                ArrayList<Chunk> batch = new ArrayList<>();
+                while (!stopped.get()) {
+                    try {
+                        queue.awaitFlush(FileWriter.FLUSH_INTERVAL);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    queue.drainTo(batch);
+                    for (Chunk i : batch) {
+                        i.release();
+                    }
+                    batch.clear();
+                }
+            }, "bench-consumer");
+            consumer.setDaemon(true);
+            consumer.start();
+            Bench.run("Chunk queue hand-off", producers, t -> () -> {
+                ByteBuffer buffer = pool.lease(CHUNK);
+                buffer.limit(CHUNK);
+                queue.put(new Chunk(buffer, 0, CHUNK, pool)); //blocks while the consumer is behind
+                return 1;
+            });
+            stopped.set(true);
+            queue.putEndMarker();
+            consumer.join();
+        }
+    }
+
+    private static void fileWriter() throws Exception {
+        if (!selected("FileWriter.flush 1MB")) {
+            return;
+        }
+        String url = "http://bench/idc-bench-writer.bin";
+        long size = GB;
+        int chunks = (1 << 20) / CHUNK;
+        DownloadableMetadata metadata = new DownloadableMetadata(url, size, CHUNK);
+        ChunkQueue queue = new ChunkQueue();
+        FileWriter writer = new FileWriter(metadata, queue);
+        ByteBuffer[] buffers = new ByteBuffer[chunks];
+        for (int i = 0; i < chunks; i++) {
+            buffers[i] = ByteBuffer.allocateDirect(CHUNK);
+        }
+        writer.open();
+        long[] offset = {0};
+        PrintStream out = System.out;
+        try {
+            //one operation is one checkpoint of a 1 MB batch: sort, write, force, journal append
+            Bench.run("FileWriter.flush 1MB", 1, t -> {
+                System.setOut(new PrintStream(OutputStream.nullOutputStream())); //the writer prints its progress
+                return () -> {
+                    for (int i = chunks - 1; i >= 0; i--) { //arrive out of order, as from several connections
+                        buffers[i].clear();
+                        queue.put(new Chunk(buffers[i], offset[0] + (long) i * CHUNK, CHUNK));
+                    }
+                    offset[0] = (offset[0] + (long) chunks * CHUNK) % size;
+                    writer.flush();
+                    return 1;
+                };
+            });
+        } finally {
+            System.setOut(out);
+            writer.closeStreams();
+            new File(metadata.getFilename()).delete();
+            new File(metadata.getMetadataFilename()).delete();
+        }
+    }
+
+    /**
+     * serves content over and over, at most segment bytes per read like a socket delivering packets
+     */
+    private static class EndlessChannel implements ReadableByteChannel {
+        private final ByteBuffer content;
+        private final int segment;
+
+        EndlessChannel(byte[] content, int segment) {
+            this.content = ByteBuffer.wrap(content);
+            this.segment = segment;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!content.hasRemaining()) {
+                content.clear();
+            }
+            int n = Math.min(segment, Math.min(dst.remaining(), content.remaining()));
+            dst.put(content.array(), content.position(), n);
+            content.position(content.position() + n);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * serves content over and over
+     */
+    private static class EndlessStream extends InputStream {
+        private final byte[] content;
+        private int position;
+
+        EndlessStream(byte[] content) {
+            this.content = content;
+        }
+
+        @Override
+        public int read() {
+            if (position == content.length) {
+                position = 0;
+            }
+            return content[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position == content.length) {
+                position = 0;
+            }
+            int n = Math.min(len, content.length - position);
+            System.arraycopy(content, position, b, off, n);
+            position += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,412 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A loopback HTTP/1.1 server that serves byte ranges, for benchmarking downloads without the internet.
+ *
+ * A request path is /OPTIONS/NAME. NAME is a file under the root directory, or a synthetic file named by its
+ * size ("64M.bin", "1G.bin", "1000.bin") whose content is a fixed pseudo-random pattern, see byteAt().
+ * OPTIONS is "-" or semicolon separated faults applied to the responses on the path (resets and stalls only to
+ * range responses, so probes always succeed):
+ *
+ *   cap=BYTES      per-connection bandwidth in bytes per second (K, M and G suffixes are allowed)
+ *   latency=MS     delay before every response
+ *   reset=P        probability that a response body is cut by a connection reset at a random point
+ *   stall=P        probability that a response body pauses at a random point
+ *   stallMillis=MS how long a stall lasts, 3000 by default
+ *
+ * Keep-alive, HEAD, and single "bytes=" ranges are supported, which is all a download manager needs.
+ *
+ * usage: java -cp out RangeServer [PORT] [ROOT-DIR]
+ * prints "listening PORT" once it accepts connections, PORT 0 picks a free one.
+ */
+public class RangeServer implements AutoCloseable {
+    private static final int PATTERN_LENGTH = 65521; // prime, so the pattern does not line up with chunk sizes
+    private static final byte[] PATTERN = new byte[PATTERN_LENGTH];
+    private static final int SLICE = 16 * 1024;
+
+    static {
+        new Random(1337).nextBytes(PATTERN);
+    }
+
+    private final ServerSocket serverSocket;
+    private final File root;
+    private final ExecutorService connections = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "range-server");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong seed = new AtomicLong(42);
+    private volatile boolean closed = false;
+
+    /**
+     * @param port 0 for any free port
+     * @param root directory files are served from, or null for synthetic files only
+     * @throws IOException
+     */
+    RangeServer(int port, File root) throws IOException {
+        this.serverSocket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+        this.root = root;
+        Thread acceptor = new Thread(this::accept, "range-server-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        File root = args.length > 1 ? new File(args[1]) : null;
+        RangeServer server = new RangeServer(port, root);
+        System.out.println("listening " + server.getPort());
+        System.out.flush();
+        //serve until the parent closes our standard input or kills us
+        while (System.in.read() != -1) {
+        }
+        server.close();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @param offset
+     * @return the byte of every synthetic file at offset
+     */
+    static byte byteAt(long offset) {
+        return PATTERN[(int) (offset % PATTERN_LENGTH)];
+    }
+
+    /**
+     * parses a size such as 1000, 64K, 16M or 2G
+     * @param value
+     * @return bytes
+     */
+    static long parseSize(String value) {
+        String upper = value.trim().toUpperCase(Locale.ROOT);
+        long unit = 1;
+        char last = upper.charAt(upper.length() - 1);
+        if (last == 'K' || last == 'M' || last == 'G') {
+            unit = last == 'K' ? 1L << 10 : last == 'M' ? 1L << 20 : 1L << 30;
+            upper = upper.substring(0, upper.length() - 1);
+        }
+        return (long) (Double.parseDouble(upper) * unit);
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("RangeServer: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * answers requests on one connection until the client closes it or a fault resets it
+     */
+    private void serve(Socket socket) {
+        Random random = new Random(seed.incrementAndGet());
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = new BufferedOutputStream(s.getOutputStream(), SLICE);
+            while (true) {
+                String requestLine = readLine(in);
+                if (requestLine == null || requestLine.isEmpty()) {
+                    return;
+                }
+                Map<String, String> headers = new HashMap<>();
+                String line;
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+                    }
+                }
+                if (!respond(requestLine, headers, out, s, random)
+                        || "close".equalsIgnoreCase(headers.get("connection"))) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            //the client went away, e.g. after reading only the headers of a probe
+        }
+    }
+
+    /**
+     * @return false if the connection must be closed
+     */
+    private boolean respond(String requestLine, Map<String, String> headers, OutputStream out, Socket socket, Random random)
+            throws IOException {
+        String[] parts = requestLine.split(" ");
+        if (parts.length < 2 || !(parts[0].equals("GET") || parts[0].equals("HEAD"))) {
+            writeHead(out, "405 Method Not Allowed", 0, null);
+            out.flush();
+            return false;
+        }
+        String path = parts[1];
+        int slash = path.indexOf('/', 1);
+        if (slash < 0) {
+            writeHead(out, "404 Not Found", 0, null);
+            out.flush();
+            return true;
+        }
+        Faults faults = new Faults(path.substring(1, slash));
+        String name = path.substring(slash + 1);
+        Body body = open(name);
+        if (body == null) {
+            writeHead(out, "404 Not Found", 0, null);
+            out.flush();
+            return true;
+        }
+        try {
+            sleep(faults.latency);
+
+            long start = 0;
+            long end = body.size - 1;
+            String status = "200 OK";
+            StringBuilder extra = new StringBuilder();
+            extra.append("Accept-Ranges: bytes\r\n");
+            extra.append("ETag: \"").append(Long.toHexString(body.size)).append('-').append(Integer.toHexString(name.hashCode())).append("\"\r\n");
+            extra.append("Last-Modified: Thu, 01 Jan 2026 00:00:00 GMT\r\n");
+            String range = headers.get("range");
+            if (range != null && range.startsWith("bytes=") && !range.contains(",")) {
+                String spec = range.substring("bytes=".length());
+                int dash = spec.indexOf('-');
+                if (dash == 0) {
+                    start = Math.max(0, body.size - Long.parseLong(spec.substring(1)));
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    if (dash < spec.length() - 1) {
+                        end = Math.min(end, Long.parseLong(spec.substring(dash + 1)));
+                    }
+                }
+                if (start >= body.size || start > end) {
+                    extra.append("Content-Range: bytes */").append(body.size).append("\r\n");
+                    writeHead(out, "416 Range Not Satisfiable", 0, extra);
+                    out.flush();
+                    return true;
+                }
+                status = "206 Partial Content";
+                extra.append("Content-Range: bytes ").append(start).append('-').append(end).append('/').append(body.size).append("\r\n");
+            }
+            long length = end - start + 1;
+            writeHead(out, status, length, extra);
+            if (parts[0].equals("HEAD")) {
+                out.flush();
+                return true;
+            }
+            //resets and stalls only hit range responses, so a download can always probe the file
+            return writeBody(out, socket, body, start, length, faults, status.startsWith("206"), random);
+        } finally {
+            body.close();
+        }
+    }
+
+    private static void writeHead(OutputStream out, String status, long length, StringBuilder extra) throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(status).append("\r\n");
+        head.append("Content-Length: ").append(length).append("\r\n");
+        head.append("Content-Type: application/octet-stream\r\n");
+        if (extra != null) {
+            head.append(extra);
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * sends length bytes of body from start, paced to the bandwidth cap, with the faults of the path
+     * @return false if the connection was reset on purpose
+     */
+    private boolean writeBody(OutputStream out, Socket socket, Body body, long start, long length, Faults faults,
+                              boolean ranged, Random random) throws IOException {
+        long resetAt = ranged && random.nextDouble() < faults.reset ? (long) (random.nextDouble() * length) : -1;
+        long stallAt = ranged && random.nextDouble() < faults.stall ? (long) (random.nextDouble() * length) : -1;
+        byte[] slice = new byte[SLICE];
+        long began = System.nanoTime();
+        long sent = 0;
+        while (sent < length) {
+            int n = (int) Math.min(SLICE, length - sent);
+            if (resetAt >= 0 && sent + n > resetAt) {
+                n = (int) (resetAt - sent);
+            }
+            body.read(start + sent, slice, n);
+            out.write(slice, 0, n);
+            sent += n;
+            if (resetAt >= 0 && sent >= resetAt) {
+                out.flush();
+                socket.setSoLinger(true, 0); //close with RST instead of FIN
+                return false;
+            }
+            if (stallAt >= 0 && sent >= stallAt) {
+                out.flush();
+                sleep(faults.stallMillis);
+                stallAt = -1;
+                began += faults.stallMillis * 1_000_000L;
+            }
+            if (faults.cap > 0) {
+                long due = began + (long) (sent * 1e9 / faults.cap);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    out.flush();
+                    sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                }
+            }
+        }
+        out.flush();
+        return true;
+    }
+
+    private Body open(String name) throws IOException {
+        if (root != null) {
+            File file = new File(root, name);
+            if (file.isFile() && file.getCanonicalPath().startsWith(root.getCanonicalPath())) {
+                return new FileBody(file);
+            }
+        }
+        if (name.endsWith(".bin")) {
+            try {
+                return new Body(parseSize(name.substring(0, name.length() - ".bin".length())));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = line.length();
+                return length > 0 && line.charAt(length - 1) == '\r' ? line.substring(0, length - 1) : line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    private static void sleep(long millis) {
+        sleep(millis, 0);
+    }
+
+    private static void sleep(long millis, int nanos) {
+        if (millis <= 0 && nanos <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis, nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        connections.shutdownNow();
+    }
+
+    /**
+     * the faults a path asks for
+     */
+    private static class Faults {
+        long cap = 0;
+        long latency = 0;
+        double reset = 0;
+        double stall = 0;
+        long stallMillis = 3000;
+
+        Faults(String spec) {
+            if (spec.equals("-")) {
+                return;
+            }
+            for (String i : spec.split(";")) {
+                int equals = i.indexOf('=');
+                if (equals < 0) {
+                    continue;
+                }
+                String key = i.substring(0, equals);
+                String value = i.substring(equals + 1);
+                switch (key) {
+                    case "cap": cap = parseSize(value); break;
+                    case "latency": latency = Long.parseLong(value); break;
+                    case "reset": reset = Double.parseDouble(value); break;
+                    case "stall": stall = Double.parseDouble(value); break;
+                    case "stallMillis": stallMillis = Long.parseLong(value); break;
+                    default: break;
+                }
+            }
+        }
+    }
+
+    /**
+     * a synthetic file: the pattern repeated up to size bytes
+     */
+    private static class Body {
+        final long size;
+
+        Body(long size) {
+            this.size = size;
+        }
+
+        void read(long offset, byte[] into, int length) throws IOException {
+            int done = 0;
+            while (done < length) {
+                int at = (int) ((offset + done) % PATTERN_LENGTH);
+                int n = Math.min(length - done, PATTERN_LENGTH - at);
+                System.arraycopy(PATTERN, at, into, done, n);
+                done += n;
+            }
+        }
+
+        void close() throws IOException {
+        }
+    }
+
+    /**
+     * a file from the root directory
+     */
+    private static class FileBody extends Body {
+        private final RandomAccessFile file;
+
+        FileBody(File file) throws IOException {
+            super(file.length());
+            this.file = new RandomAccessFile(file, "r");
+        }
+
+        @Override
+        void read(long offset, byte[] into, int length) throws IOException {
+            file.seek(offset);
+            file.readFully(into, 0, length);
+        }
+
+        @Override
+        void close() throws IOException {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+
+/**
+ * End-to-end benchmark: downloads synthetic files from a RangeServer over loopback, across profiles of
+ * injected faults, connection counts, rate limits and file sizes, and prints one JSON line per run with
+ * MB/s, CPU time, GC time and time-to-complete, plus whether the file arrived intact.
+ *
+ * The server runs in a child JVM so the CPU and GC numbers are the downloader's alone. Downloaded files are
+ * written to (and removed from) the working directory.
+ *
+ * Tuning (comma separated lists):
+ *   -Dbench.profiles=clean,latency,capped,lossy   fault profiles, see PROFILES
+ *   -Dbench.connections=1,4,8                      N, MIN-MAX or auto, as on the IdcDm command line
+ *   -Dbench.limits=0,16M                           global rate limit in bytes per second, 0 for none
+ *   -Dbench.sizes=16M,64M
+ *   -Dbench.repeat=1                               runs of every combination
+ *   -Dbench.server=http://127.0.0.1:PORT           use a running RangeServer instead of starting one
+ *
+ * usage: java -cp out ThroughputBench
+ */
+public class ThroughputBench {
+    private static final Map<String, String> PROFILES = new LinkedHashMap<>();
+
+    static {
+        PROFILES.put("clean", "-");
+        PROFILES.put("latency", "latency=50");
+        PROFILES.put("capped", "cap=2M");
+        PROFILES.put("lossy", "reset=0.05;stall=0.05;stallMillis=2000");
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> profiles = list("bench.profiles", "clean,latency,capped,lossy");
+        List<String> connections = list("bench.connections", "1,4,8");
+        List<String> limits = list("bench.limits", "0,16M");
+        List<String> sizes = list("bench.sizes", "16M,64M");
+        int repeat = Integer.getInteger("bench.repeat", 1);
+
+        String server = System.getProperty("bench.server");
+        Process process = null;
+        if (server == null) {
+            process = startServer();
+            server = "http://127.0.0.1:" + readPort(process);
+        }
+        PrintStream out = System.out;
+        try {
+            //one untimed download so the JIT has compiled the hot paths before anything is reported
+            run(server, "-", "4", "0", "16M", null);
+            for (String profile : profiles) {
+                String faults = PROFILES.getOrDefault(profile, profile);
+                for (String size : sizes) {
+                    for (String limit : limits) {
+                        for (String connection : connections) {
+                            for (int i = 0; i < repeat; i++) {
+                                out.println(run(server, faults, connection, limit, size, profile));
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            System.setOut(out);
+            if (process != null) {
+                process.getOutputStream().close();
+                process.destroy();
+            }
+        }
+    }
+
+    /**
+     * downloads one file and measures it
+     * @return the result as a JSON line
+     */
+    private static String run(String server, String faults, String connections, String limit, String size, String profile)
+            throws IOException {
+        int minWorkers;
+        int maxWorkers;
+        if (connections.equalsIgnoreCase("auto")) {
+            minWorkers = 1;
+            maxWorkers = IdcDm.AUTO_MAX_CONNECTIONS;
+        } else if (connections.contains("-")) {
+            minWorkers = Integer.parseInt(connections.substring(0, connections.indexOf('-')));
+            maxWorkers = Integer.parseInt(connections.substring(connections.indexOf('-') + 1));
+        } else {
+            minWorkers = maxWorkers = Integer.parseInt(connections);
+        }
+        long bytesPerSecond = RangeServer.parseSize(limit);
+        long bytes = RangeServer.parseSize(size);
+        String name = bytes + ".bin";
+        clean(name);
+
+        long cpuBefore = processCpuTime();
+        long[] gcBefore = gc();
+        long start = System.nanoTime();
+        boolean succeeded;
+        try (DownloadEngine engine = new DownloadEngine(minWorkers, maxWorkers, bytesPerSecond > 0 ? bytesPerSecond : null)) {
+            engine.submit(server + "/" + faults + "/" + name).getFuture().join();
+            succeeded = true;
+        } catch (CompletionException e) {
+            succeeded = false;
+        }
+        long elapsed = System.nanoTime() - start;
+        long cpu = processCpuTime() - cpuBefore;
+        long[] gcAfter = gc();
+        boolean verified = succeeded && verify(name, bytes);
+        clean(name);
+
+        double seconds = elapsed / 1e9;
+        return String.format(Locale.ROOT,
+                "{\"profile\":\"%s\",\"faults\":\"%s\",\"size\":%d,\"connections\":\"%s\",\"limit\":%d,"
+                        + "\"seconds\":%.3f,\"mbPerSecond\":%.2f,\"cpuSeconds\":%.3f,\"gcSeconds\":%.3f,\"gcCount\":%d,"
+                        + "\"succeeded\":%b,\"verified\":%b}",
+                profile, faults, bytes, connections, bytesPerSecond,
+                seconds, bytes / seconds / (1 << 20), cpu / 1e9, (gcAfter[0] - gcBefore[0]) / 1e3, gcAfter[1] - gcBefore[1],
+                succeeded, verified);
+    }
+
+    /**
+     * @return true if the downloaded file is the server's synthetic file of that size
+     */
+    private static boolean verify(String name, long size) throws IOException {
+        File file = new File(name);
+        if (file.length() != size) {
+            return false;
+        }
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+            for (long i = 0; i < size; i++) {
+                if ((byte) in.read() != RangeServer.byteAt(i)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static void clean(String name) {
+        new File(name).delete();
+        new File(DownloadableMetadata.getMetadataName(name)).delete();
+        new File(DownloadableMetadata.getMetadataName(name) + ".bak").delete();
+    }
+
+    private static long processCpuTime() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+
+    /**
+     * @return {collection millis, collection count} over all collectors
+     */
+    private static long[] gc() {
+        long time = 0;
+        long count = 0;
+        for (GarbageCollectorMXBean i : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, i.getCollectionTime());
+            count += Math.max(0, i.getCollectionCount());
+        }
+        return new long[]{time, count};
+    }
+
+    private static Process startServer() throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "RangeServer", "0");
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        return builder.start();
+    }
+
+    private static int readPort(Process process) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.US_ASCII));
+        String line = reader.readLine();
+        if (line == null || !line.startsWith("listening ")) {
+            throw new IOException("RangeServer did not start: " + line);
+        }
+        return Integer.parseInt(line.substring("listening ".length()).trim());
+    }
+
+    private static List<String> list(String property, String defaults) {
+        List<String> values = new ArrayList<>();
+        for (String i : System.getProperty(property, defaults).split(",")) {
+            if (!i.trim().isEmpty()) {
+                values.add(i.trim());
+            }
+        }
+        return values;
+    }
+}
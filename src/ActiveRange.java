@@ -0,0 +1,108 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A range that is currently being downloaded by an HTTPRangeGetter.
+ *
+ * The getter advances position as it hands chunks to the queue. The scheduler may split the range at any time,
+ * which moves end back to the middle of what is left; the getter notices it through accept() and stops there.
+ */
+class ActiveRange {
+    private final long start;
+    private volatile long position;
+    private volatile long end;
+    private final long startedAt;
+    private final LongAdder delivered;
+
+    /**
+     * @param range
+     * @param delivered counts every accepted byte, shared by all ranges of a download
+     */
+    ActiveRange(Range range, LongAdder delivered) {
+        this.start = range.getStart();
+        this.position = range.getStart();
+        this.end = range.getEnd();
+        this.startedAt = System.nanoTime();
+        this.delivered = delivered;
+    }
+
+    /**
+     * claims the next bytes read by the getter
+     * @param bytes number of bytes read at getPosition()
+     * @return how many of them still belong to this range
+     */
+    synchronized int accept(int bytes) {
+        long accepted = Math.max(0, Math.min(bytes, end - position + 1));
+        position += accepted;
+        delivered.add(accepted);
+        return (int) accepted;
+    }
+
+    /**
+     * gives away the second half of what is left of this range, cut at a multiple of align when one is near
+     * enough to the middle
+     * @param minLength smallest length either half may have
+     * @param align e.g. the hash block size, so that both halves hash their blocks in order
+     * @return the second half, or null if the range is too short to split
+     */
+    synchronized Range split(long minLength, long align) {
+        long remaining = end - position + 1;
+        if (remaining < 2 * minLength) {
+            return null;
+        }
+        long middle = position + remaining / 2;
+        if (align > 1) {
+            long aligned = middle - middle % align;
+            if (aligned - position < minLength) {
+                aligned += align;
+            }
+            if (aligned - position >= minLength && end - aligned + 1 >= minLength) {
+                middle = aligned;
+            }
+        }
+        Range tail = new Range(middle, end);
+        end = middle - 1;
+        return tail;
+    }
+
+    /**
+     * ends the range where the getter is, so it stops at its next read and nothing is left to queue again
+     */
+    synchronized void cancel() {
+        end = position - 1;
+    }
+
+    /**
+     * @return estimated nanoseconds until this range is done at its current speed
+     */
+    double estimatedTimeLeft() {
+        long done = position - start;
+        long remaining = end - position + 1;
+        if (done <= 0) {
+            return Double.MAX_VALUE;
+        }
+        return remaining * (double) (System.nanoTime() - startedAt) / done;
+    }
+
+    /**
+     * @return bytes per second delivered since the range started
+     */
+    double throughput() {
+        long elapsed = System.nanoTime() - startedAt;
+        return elapsed <= 0 ? 0 : (position - start) * 1e9 / elapsed;
+    }
+
+    long getPosition() {
+        return position;
+    }
+
+    long getEnd() {
+        return end;
+    }
+
+    /**
+     * @return what is left of the range, or null if nothing is
+     */
+    synchronized Range remaining() {
+        return position > end ? null : new Range(position, end);
+    }
+}
@@ -0,0 +1,185 @@
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The token buckets of every download a DownloadManager runs, nested like HTB classes:
+ *
+ *   global (the LIMIT argument)
+ *     origin (host:port, -Didc.limit.origin)
+ *     download (a weighted share of global)
+ *       connection (one range, -Didc.limit.connection), charges both its download and its origin
+ *
+ * A getter charges its connection bucket, which charges every level above it in one take(). The origin and
+ * connection limits are fixed ceilings. The download shares are recomputed every REBALANCE_INTERVAL by weighted
+ * max-min fairness (water-filling): a download that did not use most of its share last interval is given what it
+ * used plus some headroom, and the capacity it left is split among the others by weight, so spare bandwidth is
+ * borrowed instead of wasted, and a download that wants more gets back to its full share in one interval.
+ */
+class BandwidthTree {
+    static final long ORIGIN_LIMIT = Long.getLong("idc.limit.origin", TokenBucket.UNLIMITED);
+    static final long CONNECTION_LIMIT = Long.getLong("idc.limit.connection", TokenBucket.UNLIMITED);
+    static final long REBALANCE_INTERVAL = 1000;
+    private static final double HUNGRY = 0.9;
+    private static final double HEADROOM = 1.25;
+
+    private final Long globalRate;
+    private final TokenBucket global;
+    private final Map<String, TokenBucket> origins = new ConcurrentHashMap<>();
+    private final Map<TokenBucket, Share> downloads = new LinkedHashMap<>();
+    private long rebalancedAt = System.nanoTime();
+
+    /**
+     * @param maxBytesPerSecond limit on the bytes-per-second of all downloads together, or null
+     */
+    BandwidthTree(Long maxBytesPerSecond) {
+        this.globalRate = maxBytesPerSecond;
+        this.global = newBucket(maxBytesPerSecond == null ? TokenBucket.UNLIMITED : maxBytesPerSecond);
+    }
+
+    /**
+     * starts moving spare capacity between downloads every REBALANCE_INTERVAL
+     * @param executor
+     */
+    void start(ScheduledExecutorService executor) {
+        if (globalRate != null) {
+            executor.scheduleWithFixedDelay(this::rebalance, REBALANCE_INTERVAL, REBALANCE_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * adds a download, every download starts at its plain weighted share
+     * @param weight
+     * @return the download's bucket
+     */
+    synchronized TokenBucket addDownload(double weight) {
+        TokenBucket bucket = newBucket(TokenBucket.UNLIMITED, global);
+        downloads.put(bucket, new Share(weight, bucket.getTaken()));
+        for (Share i : downloads.values()) {
+            i.demand = Double.MAX_VALUE;
+        }
+        apply();
+        return bucket;
+    }
+
+    /**
+     * gives a finished download's share back to the others
+     * @param bucket
+     */
+    synchronized void removeDownload(TokenBucket bucket) {
+        downloads.remove(bucket);
+        apply();
+    }
+
+    /**
+     * @param download the bucket of the download the connection belongs to
+     * @param url the URL the connection fetches from
+     * @return a bucket for one connection, charging its download and the URL's origin
+     */
+    TokenBucket forConnection(TokenBucket download, String url) {
+        TokenBucket origin = origins.computeIfAbsent(originOf(url), i -> newBucket(ORIGIN_LIMIT, global));
+        return newBucket(CONNECTION_LIMIT, download, origin);
+    }
+
+    private static String originOf(String url) {
+        try {
+            URI uri = new URI(url);
+            return uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+        } catch (Exception e) {
+            return url;
+        }
+    }
+
+    /**
+     * measures what every download used since the last call and redistributes the global rate
+     */
+    synchronized void rebalance() {
+        long now = System.nanoTime();
+        double seconds = (now - rebalancedAt) / 1e9;
+        rebalancedAt = now;
+        if (seconds <= 0) {
+            return;
+        }
+        for (Map.Entry<TokenBucket, Share> i : downloads.entrySet()) {
+            long taken = i.getKey().getTaken();
+            double used = (taken - i.getValue().taken) / seconds;
+            i.getValue().taken = taken;
+            //a download that used (nearly) all it was given may want more than that
+            i.getValue().demand = used >= HUNGRY * i.getValue().rate ? Double.MAX_VALUE : used * HEADROOM + HTTPRangeGetter.CHUNK_SIZE;
+        }
+        apply();
+    }
+
+    /**
+     * water-filling: satisfies the downloads that demand less than their weighted share, then splits the
+     * rest among the others by weight
+     */
+    private void apply() {
+        if (globalRate == null || downloads.isEmpty()) {
+            return;
+        }
+        double remaining = globalRate;
+        double weights = 0;
+        for (Share i : downloads.values()) {
+            i.satisfied = false;
+            weights += i.weight;
+        }
+        boolean changed = true;
+        while (changed && weights > 0) {
+            changed = false;
+            double perWeight = remaining / weights;
+            for (Share i : downloads.values()) {
+                if (!i.satisfied && i.demand <= perWeight * i.weight) {
+                    i.satisfied = true;
+                    i.rate = i.demand;
+                    remaining -= i.demand;
+                    weights -= i.weight;
+                    changed = true;
+                }
+            }
+        }
+        double total = 0;
+        for (Share i : downloads.values()) {
+            total += i.weight;
+        }
+        for (Map.Entry<TokenBucket, Share> i : downloads.entrySet()) {
+            Share share = i.getValue();
+            if (!share.satisfied) {
+                share.rate = remaining * share.weight / weights;
+            } else if (weights == 0) {
+                //everyone is satisfied, spread what is left so any of them can grow
+                share.rate += remaining * share.weight / total;
+            }
+            long rate = Math.max(1, (long) share.rate);
+            i.getKey().setRate(Math.max(rate, HTTPRangeGetter.CHUNK_SIZE), rate);
+        }
+    }
+
+    /**
+     * creates a bucket allowing bursts of up to one second of traffic, and at least CHUNK_SIZE
+     */
+    private static TokenBucket newBucket(long bytesPerSecond, TokenBucket... parents) {
+        long bucketSize = bytesPerSecond == TokenBucket.UNLIMITED ? TokenBucket.UNLIMITED
+                : Math.max(bytesPerSecond, HTTPRangeGetter.CHUNK_SIZE);
+        return new TokenBucket(bucketSize, bytesPerSecond, parents);
+    }
+
+    /**
+     * a download's weight, and what it used and was given in the last interval
+     */
+    private static class Share {
+        final double weight;
+        long taken;
+        double demand = Double.MAX_VALUE;
+        double rate;
+        boolean satisfied;
+
+        Share(double weight, long taken) {
+            this.weight = weight;
+            this.taken = taken;
+        }
+    }
+}
@@ -0,0 +1,524 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * SHA-256 hashes of the file's fixed-size blocks, computed while the file is written, and their Merkle root.
+ *
+ * The FileWriter hands every batch to update() before writing it. A block whose bytes arrive in order (one
+ * connection streaming through it) is hashed straight from the chunk buffers, on a pool of hasher threads while
+ * the batch is being written and forced, so it costs no extra I/O. A block that arrives out of order, or was
+ * partly written before a restart, is read back from the file once it is complete. Hashes are recorded in the
+ * metadata journal in the same append as the ranges they describe, after the data was forced, and a compacted
+ * journal lists them in the order they were computed, so loading it restores that order. On resume,
+ * verifyResumed() reads back the VERIFIED_BLOCKS most recently hashed blocks, the ones written closest to the
+ * crash, and drops any that no longer match from the metadata so they are downloaded again; rehashResumed() then
+ * hashes the complete blocks that were in flight and have no hash to compare with.
+ *
+ * With -Didc.sha256=HEX the whole file's SHA-256 is also computed while the file is written: the chunks that
+ * continue the downloaded prefix are hashed from their buffers like an in-order block, and only bytes written
+ * ahead of a gap, or before a restart, are read back once the gap before them is filled.
+ * -Didc.hashBlock sets the smallest block size in bytes (1 MB by default, 0 turns hashing off). Larger files get
+ * larger blocks, doubling until there are at most MAX_BLOCKS of them, so tracking a 4 TB file costs about as much
+ * memory and journal space as a 4 GB one.
+ */
+class BlockHashes {
+    static final int DEFAULT_BLOCK_SIZE = Integer.getInteger("idc.hashBlock", 1 << 20);
+    static final String EXPECTED_SHA256 = System.getProperty("idc.sha256");
+    static final int HASH_SIZE = 32;
+    static final int MAX_BLOCKS = 1 << 16;
+    private static final int MAX_BLOCK_SIZE = 1 << 30;
+    private static final int READ_SIZE = 1 << 20;
+    static final int VERIFIED_BLOCKS = 4;
+    private static final ExecutorService hashers = Executors.newFixedThreadPool(
+            Integer.getInteger("idc.hashThreads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)), r -> {
+                Thread thread = new Thread(r, "idc-hasher");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final String filename;
+    private final long fileSize;
+    private final int blockSize;
+    private final int blockCount;
+    private final AtomicReferenceArray<byte[]> hashes;
+    private final AtomicLongArray hashedAt; //when each hash was set, in a sequence shared by the blocks
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<Integer, Block> active = new HashMap<>();
+    private final Set<Integer> touched = new LinkedHashSet<>();
+    private final Map<Integer, CompletableFuture<Void>> readBacks = new ConcurrentHashMap<>();
+    private final Queue<Integer> unjournaled = new ConcurrentLinkedQueue<>();
+    private MessageDigest fileDigest;
+    private long fileDigested;
+    private CompletableFuture<Void> fileDigesting = CompletableFuture.completedFuture(null);
+    private volatile IOException fileDigestFailure;
+    private FileChannel reader;
+
+    /**
+     * the in-order hashing state of a block being written
+     */
+    private static class Block {
+        final MessageDigest digest = newDigest();
+        final List<ByteBuffer> pending = new ArrayList<>();
+        long hashed;
+        boolean dirty;
+    }
+
+    /**
+     * @param filename the file being downloaded
+     * @param fileSize
+     * @param blockSize bytes per block, 0 for no hashing
+     */
+    BlockHashes(String filename, long fileSize, int blockSize) {
+        this.filename = filename;
+        this.fileSize = fileSize;
+        this.blockSize = Math.max(0, blockSize);
+        this.blockCount = this.blockSize == 0 ? 0 : (int) ((fileSize + this.blockSize - 1) / this.blockSize);
+        this.hashes = new AtomicReferenceArray<>(blockCount);
+        this.hashedAt = new AtomicLongArray(blockCount);
+        if (EXPECTED_SHA256 != null) {
+            fileDigest = newDigest();
+        }
+    }
+
+    /**
+     * @param fileSize
+     * @param minBlockSize
+     * @return the block size for a file of that size, 0 if minBlockSize is 0
+     */
+    static int blockSizeFor(long fileSize, int minBlockSize) {
+        if (minBlockSize <= 0) {
+            return 0;
+        }
+        long size = minBlockSize;
+        while (size < MAX_BLOCK_SIZE && (fileSize + size - 1) / size > MAX_BLOCKS) {
+            size <<= 1;
+        }
+        return (int) Math.min(size, MAX_BLOCK_SIZE);
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    boolean isEnabled() {
+        return blockCount > 0;
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    private long blockStart(int block) {
+        return (long) block * blockSize;
+    }
+
+    private long blockEnd(int block) {
+        return Math.min(fileSize, blockStart(block) + blockSize);
+    }
+
+    /**
+     * starts hashing the in-order part of a batch; call before the batch is written, since writing consumes the
+     * buffers, and join the result before the next batch
+     * @param i_sorted data chunks sorted by offset
+     * @return completes when the batch is hashed
+     */
+    CompletableFuture<Void> update(List<Chunk> i_sorted) {
+        List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        if (fileDigest != null && !i_sorted.isEmpty()) {
+            feedFileDigest(i_sorted, tasks);
+        }
+        if (!isEnabled() || i_sorted.isEmpty()) {
+            return CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0]));
+        }
+        touched.clear();
+        for (Chunk i : i_sorted) {
+            ByteBuffer data = i.getData().duplicate();
+            long offset = i.getOffset();
+            while (data.hasRemaining()) {
+                int index = (int) (offset / blockSize);
+                int length = (int) Math.min(data.remaining(), blockEnd(index) - offset);
+                ByteBuffer segment = data.duplicate();
+                segment.limit(segment.position() + length);
+                data.position(data.position() + length);
+                feed(index, offset, segment);
+                offset += length;
+            }
+        }
+        for (int i : touched) {
+            Block block = active.get(i);
+            if (block != null && !block.pending.isEmpty()) {
+                List<ByteBuffer> segments = new ArrayList<>(block.pending);
+                block.pending.clear();
+                tasks.add(CompletableFuture.runAsync(() -> {
+                    for (ByteBuffer j : segments) {
+                        block.digest.update(j);
+                    }
+                }, hashers));
+            }
+        }
+        return CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * hashes the chunks that continue the file digest's prefix into it, unless a read-back of the file is running
+     * @param i_sorted data chunks sorted by offset
+     * @param tasks receives the hashing task
+     */
+    private void feedFileDigest(List<Chunk> i_sorted, List<CompletableFuture<Void>> tasks) {
+        if (!fileDigesting.isDone() || fileDigestFailure != null) {
+            return;
+        }
+        List<ByteBuffer> segments = new ArrayList<>();
+        for (Chunk i : i_sorted) {
+            ByteBuffer data = i.getData().duplicate();
+            long end = i.getOffset() + data.remaining();
+            if (i.getOffset() > fileDigested) {
+                break; //a gap, the bytes after it are read back once it is filled
+            }
+            if (end > fileDigested) {
+                data.position(data.position() + (int) (fileDigested - i.getOffset()));
+                segments.add(data);
+                fileDigested = end;
+            }
+        }
+        if (!segments.isEmpty()) {
+            fileDigesting = CompletableFuture.runAsync(() -> {
+                for (ByteBuffer j : segments) {
+                    fileDigest.update(j);
+                }
+            }, hashers);
+            tasks.add(fileDigesting);
+        }
+    }
+
+    private void feed(int index, long offset, ByteBuffer segment) {
+        if (hashes.get(index) != null) {
+            return;
+        }
+        Block block = active.get(index);
+        if (block == null) {
+            block = new Block();
+            active.put(index, block);
+        }
+        touched.add(index);
+        if (block.dirty) {
+            return;
+        }
+        if (offset == blockStart(index) + block.hashed) {
+            block.pending.add(segment);
+            block.hashed += segment.remaining();
+        } else {
+            block.dirty = true; //a gap or an overlap, read the block back once it is complete
+            block.pending.clear();
+        }
+    }
+
+    /**
+     * finishes the blocks of the last batch that are now complete on disk; call after the batch was forced and
+     * added to the metadata
+     * @param metadata
+     */
+    void complete(DownloadableMetadata metadata) {
+        metadata.lock.lock();
+        try {
+            readBacks.values().removeIf(CompletableFuture::isDone);
+            for (int i : touched) {
+                if (hashes.get(i) == null && metadata.getDoneRanges().contains(blockStart(i), blockEnd(i))) {
+                    Block block = active.remove(i);
+                    if (block != null && !block.dirty && block.hashed == blockEnd(i) - blockStart(i)) {
+                        setHash(i, block.digest.digest());
+                        unjournaled.add(i);
+                    } else {
+                        readBack(i);
+                    }
+                }
+            }
+            touched.clear();
+            if (fileDigest != null) {
+                advanceFileDigest(metadata.getDoneRanges().nextMissing(0));
+            }
+        } finally {
+            metadata.lock.unlock();
+        }
+    }
+
+    /**
+     * reads back the most recently hashed blocks, after a restart, and compares them with their recorded hashes; a block
+     * that differs, or can no longer be read, loses its hash and is removed from the metadata's done ranges.
+     * Call before the metadata is written out again or scheduled.
+     * @param metadata
+     * @return number of blocks that did not match
+     */
+    int verifyResumed(DownloadableMetadata metadata) {
+        int mismatched = 0;
+        List<Integer> recent = hashedByRecency();
+        for (int i : recent.subList(Math.max(0, recent.size() - VERIFIED_BLOCKS), recent.size())) {
+            byte[] recorded = hashes.get(i);
+            byte[] actual;
+            try {
+                MessageDigest digest = newDigest();
+                read(blockStart(i), blockEnd(i), digest);
+                actual = digest.digest();
+            } catch (IOException e) {
+                actual = null;
+            }
+            if (recorded != null && !MessageDigest.isEqual(recorded, actual)) {
+                hashes.set(i, null);
+                metadata.removeRange(blockStart(i), blockEnd(i));
+                mismatched++;
+            }
+        }
+        return mismatched;
+    }
+
+    /**
+     * reads back the blocks that are complete in the metadata but have no hash, after a restart
+     * @param metadata
+     * @return number of blocks read back
+     */
+    int rehashResumed(DownloadableMetadata metadata) {
+        if (!isEnabled()) {
+            return 0;
+        }
+        int count = 0;
+        metadata.lock.lock();
+        try {
+            for (Map.Entry<Long, Long> i : metadata.getDoneRanges().intervals().entrySet()) {
+                int first = (int) ((i.getKey() + blockSize - 1) / blockSize);
+                for (int j = first; j < blockCount && blockEnd(j) <= i.getValue(); j++) {
+                    if (hashes.get(j) == null) {
+                        readBack(j);
+                        count++;
+                    }
+                }
+            }
+        } finally {
+            metadata.lock.unlock();
+        }
+        return count;
+    }
+
+    private void readBack(int index) {
+        readBacks.computeIfAbsent(index, i -> CompletableFuture.runAsync(() -> {
+            try {
+                MessageDigest digest = newDigest();
+                read(blockStart(i), blockEnd(i), digest);
+                setHash(i, digest.digest());
+                unjournaled.add(i);
+            } catch (IOException e) {
+                System.err.println("Failed to hash block " + i + " of " + filename + ": " + e.getMessage());
+            }
+        }, hashers));
+    }
+
+    /**
+     * reads the part of the file up to prefixEnd that was not hashed from the chunks into the file digest, in the
+     * background, unless an earlier part failed to read
+     */
+    private void advanceFileDigest(long prefixEnd) {
+        if (prefixEnd > fileDigested && fileDigesting.isDone() && fileDigestFailure == null) {
+            long from = fileDigested;
+            fileDigested = prefixEnd;
+            fileDigesting = CompletableFuture.runAsync(() -> {
+                try {
+                    read(from, prefixEnd, fileDigest);
+                } catch (IOException e) {
+                    fileDigestFailure = e;
+                }
+            }, hashers);
+        }
+    }
+
+    /**
+     * feeds [start, end) of the file into digest
+     */
+    private void read(long start, long end, MessageDigest digest) throws IOException {
+        FileChannel channel = reader();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(READ_SIZE, Math.max(1, end - start)));
+        long position = start;
+        while (position < end) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("File ends at " + position + ", expected " + end + " bytes");
+            }
+            buffer.flip();
+            digest.update(buffer);
+            position += read;
+        }
+    }
+
+    private synchronized FileChannel reader() throws IOException {
+        if (reader == null) {
+            reader = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        }
+        return reader;
+    }
+
+    /**
+     * @return hashes set since the last call, to be appended to the journal
+     */
+    List<Integer> drainUnjournaled() {
+        List<Integer> drained = new ArrayList<>();
+        Integer i;
+        while ((i = unjournaled.poll()) != null) {
+            drained.add(i);
+        }
+        return drained;
+    }
+
+    /**
+     * @param index
+     * @return the block's hash, or null if it is not known yet
+     */
+    byte[] get(int index) {
+        return hashes.get(index);
+    }
+
+    int getBlockCount() {
+        return blockCount;
+    }
+
+    /**
+     * sets a hash recorded in the journal
+     * @param blockSize the block size it was recorded with, ignored if it is not this one
+     * @param index
+     * @param hash
+     */
+    void load(int blockSize, int index, byte[] hash) {
+        if (blockSize == this.blockSize && index >= 0 && index < blockCount) {
+            setHash(index, hash);
+        }
+    }
+
+    private void setHash(int index, byte[] hash) {
+        hashes.set(index, hash);
+        hashedAt.set(index, sequence.incrementAndGet());
+    }
+
+    /**
+     * @return the blocks that have a hash, the least recently hashed first
+     */
+    List<Integer> hashedByRecency() {
+        List<Integer> hashed = new ArrayList<>();
+        for (int i = 0; i < blockCount; i++) {
+            if (hashes.get(i) != null) {
+                hashed.add(i);
+            }
+        }
+        hashed.sort(Comparator.comparingLong(hashedAt::get));
+        return hashed;
+    }
+
+    /**
+     * waits for the blocks being read back, hashes whatever block is still missing, and closes the file
+     * @return the Merkle root of the block hashes
+     * @throws IOException
+     */
+    byte[] finish() throws IOException {
+        for (CompletableFuture<Void> i : new ArrayList<>(readBacks.values())) {
+            i.join();
+        }
+        readBacks.clear();
+        for (int i = 0; i < blockCount; i++) {
+            if (hashes.get(i) == null) {
+                readBack(i);
+            }
+        }
+        for (CompletableFuture<Void> i : new ArrayList<>(readBacks.values())) {
+            i.join();
+        }
+        for (int i = 0; i < blockCount; i++) {
+            if (hashes.get(i) == null) {
+                throw new IOException("Failed to hash block " + i);
+            }
+        }
+        return root();
+    }
+
+    /**
+     * @return the SHA-256 of the whole file, after finish(), or null without -Didc.sha256
+     * @throws IOException if part of the file could not be read, now or while it was downloaded
+     */
+    byte[] fileDigest() throws IOException {
+        if (fileDigest == null) {
+            return null;
+        }
+        fileDigesting.join();
+        if (fileDigestFailure != null) {
+            throw new IOException("Failed to hash " + filename + ": " + fileDigestFailure.getMessage(), fileDigestFailure);
+        }
+        read(fileDigested, fileSize, fileDigest);
+        fileDigested = fileSize;
+        return fileDigest.digest();
+    }
+
+    /**
+     * a binary Merkle tree over the block hashes: a parent is SHA-256(1, left, right), and the last node of an
+     * odd level moves up unchanged
+     */
+    private byte[] root() {
+        List<byte[]> level = new ArrayList<>(blockCount);
+        for (int i = 0; i < blockCount; i++) {
+            level.add(hashes.get(i));
+        }
+        if (level.isEmpty()) {
+            return newDigest().digest();
+        }
+        MessageDigest digest = newDigest();
+        while (level.size() > 1) {
+            List<byte[]> parents = new ArrayList<>((level.size() + 1) / 2);
+            for (int i = 0; i + 1 < level.size(); i += 2) {
+                digest.update((byte) 1);
+                digest.update(level.get(i));
+                digest.update(level.get(i + 1));
+                parents.add(digest.digest());
+            }
+            if (level.size() % 2 == 1) {
+                parents.add(level.get(level.size() - 1));
+            }
+            level = parents;
+        }
+        return level.get(0);
+    }
+
+    synchronized void close() throws IOException {
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte i : bytes) {
+            hex.append(Character.forDigit((i >> 4) & 0xF, 16)).append(Character.forDigit(i & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,173 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns the body of an asynchronous java.net.http response into a blocking channel for HTTPRangeGetter.
+ *
+ * It subscribes to the body one item at a time and requests the next item only after the getter has copied the
+ * current one into its chunks, so a getter that is rate limited or waiting on a full writer stops the stream:
+ * HttpClient stops granting HTTP/2 flow-control window (or stops reading the HTTP/1.1 socket), and the server
+ * stops sending. Closing the channel before the body ends cancels the stream, which on HTTP/2 resets only that
+ * stream and leaves the connection to the other ranges.
+ */
+class BodyChannel implements Flow.Subscriber<List<ByteBuffer>>, ReadableByteChannel {
+    private static final List<ByteBuffer> END = new ArrayList<>();
+
+    private final long timeoutMillis;
+    private final BlockingQueue<List<ByteBuffer>> items = new LinkedBlockingQueue<>();
+    private final CountDownLatch headersReceived = new CountDownLatch(1);
+    private volatile Flow.Subscription subscription;
+    private volatile Throwable error;
+    private volatile int statusCode = -1;
+    private List<ByteBuffer> current;
+    private int index;
+    private boolean ended = false;
+    private boolean open = true;
+
+    /**
+     * @param timeoutMillis longest wait for the headers or the next part of the body
+     */
+    BodyChannel(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * the BodyHandler of the request
+     * @param info
+     * @return a subscriber feeding this channel
+     */
+    HttpResponse.BodySubscriber<Void> handle(HttpResponse.ResponseInfo info) {
+        statusCode = info.statusCode();
+        headersReceived.countDown();
+        return HttpResponse.BodySubscribers.fromSubscriber(this);
+    }
+
+    /**
+     * waits for the response headers
+     * @return the status code
+     * @throws IOException if the request failed or timed out
+     */
+    int awaitStatus() throws IOException {
+        try {
+            if (!headersReceived.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SocketTimeoutException("No response in " + timeoutMillis + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (error != null) {
+            throw new IOException(error.getMessage(), error);
+        }
+        return statusCode;
+    }
+
+    /**
+     * reports a request that failed before or while its body arrived
+     * @param cause
+     */
+    void failed(Throwable cause) {
+        error = cause;
+        headersReceived.countDown();
+        items.add(END);
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(1);
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> item) {
+        items.add(item);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        failed(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        items.add(END);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        while (true) {
+            if (current != null) {
+                for (; index < current.size(); index++) {
+                    ByteBuffer buffer = current.get(index);
+                    if (buffer.hasRemaining()) {
+                        return copy(buffer, dst);
+                    }
+                }
+                current = null;
+                subscription.request(1); //the getter consumed the item, let the next one in
+            }
+            if (ended) {
+                return -1;
+            }
+            List<ByteBuffer> next;
+            try {
+                next = items.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (next == null) {
+                throw new SocketTimeoutException("No data in " + timeoutMillis + " ms");
+            }
+            if (next == END) {
+                ended = true;
+                if (error != null) {
+                    throw new IOException(error.getMessage(), error);
+                }
+                return -1;
+            }
+            current = next;
+            index = 0;
+        }
+    }
+
+    private static int copy(ByteBuffer from, ByteBuffer to) {
+        int n = Math.min(from.remaining(), to.remaining());
+        int limit = from.limit();
+        from.limit(from.position() + n);
+        to.put(from);
+        from.limit(limit);
+        return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * cancels the stream if its body was not read to the end
+     */
+    @Override
+    public void close() {
+        open = false;
+        if (!ended && subscription != null) {
+            subscription.cancel();
+        }
+    }
+}
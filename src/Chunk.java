@@ -1,20 +1,29 @@
+import java.nio.ByteBuffer;
+
 /**
  * A chunk of data file
  *
- * Contains an offset, bytes of data, and size
+ * Contains an offset, bytes of data, and size.
+ * The data buffer is leased from a ChunkPool and must be released once it was written to disk.
  */
 class Chunk {
-    private byte[] data;
+    private ByteBuffer data;
     private long offset;
     private int size_in_bytes;
+    private final ChunkPool pool;
+
+    Chunk(ByteBuffer data, long offset, int size_in_bytes) {
+        this(data, offset, size_in_bytes, null);
+    }
 
-    Chunk(byte[] data, long offset, int size_in_bytes) {
-        this.data = data != null ? data.clone() : null;
+    Chunk(ByteBuffer data, long offset, int size_in_bytes, ChunkPool pool) {
+        this.data = data;
         this.offset = offset;
         this.size_in_bytes = size_in_bytes;
+        this.pool = pool;
     }
 
-    byte[] getData() {
+    ByteBuffer getData() {
         return data;
     }
 
@@ -25,4 +34,13 @@ class Chunk {
     int getSize_in_bytes() {
         return size_in_bytes;
     }
+
+    /**
+     * returns the data buffer to the pool it was leased from
+     */
+    void release() {
+        if (pool != null && data != null) {
+            pool.release(data);
+        }
+    }
 }
@@ -0,0 +1,228 @@
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of recyclable chunk buffers in a few size classes.
+ *
+ * The classes grow by a factor of CLASS_STEP from the smallest to the largest segment size (4, 16 and 64 KB by
+ * default), and lease(size) hands out a buffer of the smallest class that holds size bytes, so a getter reading
+ * 4 KB at a time under a tight rate limit holds 4 KB per queued chunk rather than a whole 64 KB segment.
+ * The initial buffers of every class are sliced out of one direct slab. HTTPRangeGetters lease a buffer per chunk
+ * and the FileWriter releases it to its class once the data is on disk, so a steady-state download allocates
+ * nothing per chunk. When a class runs dry the pool allocates a buffer for it and keeps it on release, so each
+ * class grows to its working set once and then stops allocating.
+ * The pool never holds more than maxBytes of buffers in all: at that cap, a lease first drops free buffers of the
+ * other classes to make room, and only blocks, until a buffer of its class is released, when every byte is leased,
+ * which slows the getters down like a full ChunkQueue does. By default (-Didc.pool.maxBytes) the cap is one queue
+ * budget per concurrent download plus one for the batches being written; a pool too small for every queue to
+ * reach its flush threshold only flushes every FLUSH_INTERVAL.
+ */
+class ChunkPool {
+    static final long DEFAULT_BYTES = Long.getLong("idc.pool.bytes", 4L << 20);
+    static final long DEFAULT_MAX_BYTES = Long.getLong("idc.pool.maxBytes",
+            (DownloadManager.MAX_CONCURRENT_DOWNLOADS + 1) * ChunkQueue.DEFAULT_BUDGET);
+    static final int CLASS_STEP = 4;
+    private static final long WAIT_SLICE = 10; //ms between looks at the other classes while waiting for a buffer
+
+    private final SizeClass[] classes;
+    private final long maxBytes;
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong leases = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicInteger peakInUse = new AtomicInteger();
+
+    /**
+     * the free buffers of one segment size
+     */
+    private static class SizeClass {
+        final int segmentSize;
+        final ArrayBlockingQueue<ByteBuffer> free;
+
+        SizeClass(int segmentSize, long maxBytes) {
+            this.segmentSize = segmentSize;
+            this.free = new ArrayBlockingQueue<>((int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / segmentSize)));
+        }
+    }
+
+    /**
+     * @param maxSegmentSize the largest read a getter makes
+     * the classes start at CHUNK_SIZE, the slab holds idc.pool.bytes and the pool keeps up to idc.pool.maxBytes
+     */
+    ChunkPool(int maxSegmentSize) {
+        this(Math.min(HTTPRangeGetter.CHUNK_SIZE, maxSegmentSize), maxSegmentSize, DEFAULT_BYTES, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param minSegmentSize smallest class
+     * @param maxSegmentSize largest class, which is always one even if it is not a CLASS_STEP multiple of the one below
+     * @param slabBytes bytes allocated up front, shared evenly by the classes
+     * @param maxBytes most bytes of buffers the pool holds, leased or free
+     */
+    ChunkPool(int minSegmentSize, int maxSegmentSize, long slabBytes, long maxBytes) {
+        List<Integer> sizes = new ArrayList<>();
+        for (long i = minSegmentSize; i < maxSegmentSize; i *= CLASS_STEP) {
+            sizes.add((int) i);
+        }
+        sizes.add(maxSegmentSize);
+        this.maxBytes = Math.max(maxBytes, Math.max(slabBytes, maxSegmentSize)); //a slab over the cap is kept
+        this.classes = new SizeClass[sizes.size()];
+        int[] initial = new int[classes.length];
+        long slabSize = 0;
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass(sizes.get(i), this.maxBytes);
+            initial[i] = (int) (slabBytes / classes.length / sizes.get(i));
+            slabSize += (long) initial[i] * sizes.get(i);
+        }
+        ByteBuffer slab = ByteBuffer.allocateDirect((int) slabSize);
+        for (int i = 0; i < classes.length; i++) {
+            for (int j = 0; j < initial[i]; j++) {
+                slab.limit(slab.position() + classes[i].segmentSize);
+                classes[i].free.offer(slab.slice());
+                slab.position(slab.limit());
+            }
+        }
+        bytes.set(slabSize);
+    }
+
+    /**
+     * leases an empty buffer of the smallest class that holds size bytes, allocating only if that class has no free
+     * buffer and the pool is below maxBytes
+     * @param size bytes the caller is going to read, at most getMaxSegmentSize() are used
+     * @return cleared buffer of at least min(size, getMaxSegmentSize()) bytes
+     * @throws InterruptedIOException if interrupted while waiting for a buffer to be released
+     */
+    ByteBuffer lease(int size) throws InterruptedIOException {
+        SizeClass sizeClass = classFor(size);
+        ByteBuffer buffer = sizeClass.free.poll();
+        if (buffer == null) {
+            misses.incrementAndGet();
+            buffer = allocateOrWait(sizeClass);
+        }
+        leases.incrementAndGet();
+        int current = inUse.incrementAndGet();
+        int peak;
+        while (current > (peak = peakInUse.get()) && !peakInUse.compareAndSet(peak, current)) {
+        }
+        return buffer;
+    }
+
+    private SizeClass classFor(int size) {
+        for (SizeClass i : classes) {
+            if (i.segmentSize >= size) {
+                return i;
+            }
+        }
+        return classes[classes.length - 1];
+    }
+
+    private ByteBuffer allocateOrWait(SizeClass sizeClass) throws InterruptedIOException {
+        boolean waited = false;
+        try {
+            while (true) {
+                long current = bytes.get();
+                if (current + sizeClass.segmentSize <= maxBytes) {
+                    if (bytes.compareAndSet(current, current + sizeClass.segmentSize)) {
+                        allocations.incrementAndGet();
+                        return ByteBuffer.allocateDirect(sizeClass.segmentSize);
+                    }
+                    continue;
+                }
+                if (dropFree(sizeClass)) {
+                    continue;
+                }
+                if (!waited) {
+                    waited = true;
+                    waits.incrementAndGet();
+                }
+                ByteBuffer buffer = sizeClass.free.poll(WAIT_SLICE, TimeUnit.MILLISECONDS);
+                if (buffer != null) {
+                    return buffer;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a chunk buffer");
+        }
+    }
+
+    /**
+     * drops a free buffer of another class to make room under maxBytes
+     * @return false if the other classes have no free buffer
+     */
+    private boolean dropFree(SizeClass needed) {
+        for (SizeClass i : classes) {
+            ByteBuffer buffer = i == needed ? null : i.free.poll();
+            if (buffer != null) {
+                bytes.addAndGet(-buffer.capacity());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * returns a leased buffer to the pool
+     * @param buffer
+     */
+    void release(ByteBuffer buffer) {
+        inUse.decrementAndGet();
+        buffer.clear();
+        SizeClass sizeClass = classFor(buffer.capacity());
+        if (sizeClass.segmentSize != buffer.capacity() || !sizeClass.free.offer(buffer)) {
+            bytes.addAndGet(-buffer.capacity());
+        }
+    }
+
+    /**
+     * @return size of the largest class, the longest read a lease can hold
+     */
+    int getMaxSegmentSize() {
+        return classes[classes.length - 1].segmentSize;
+    }
+
+    long getLeases() {
+        return leases.get();
+    }
+
+    /**
+     * @return leases that found no free buffer of their class and allocated or waited for one
+     */
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getAllocations() {
+        return allocations.get();
+    }
+
+    /**
+     * @return leases that waited at maxBytes for a buffer to be released
+     */
+    long getWaits() {
+        return waits.get();
+    }
+
+    int getInUse() {
+        return inUse.get();
+    }
+
+    int getPeakInUse() {
+        return peakInUse.get();
+    }
+
+    /**
+     * @return bytes of buffers the pool holds, leased or free
+     */
+    long getBytes() {
+        return bytes.get();
+    }
+}
@@ -0,0 +1,224 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The hand-off between a download's HTTPRangeGetters and its FileWriter: a ring of chunks bounded by the bytes
+ * it holds rather than by the number of chunks. A chunk counts with the capacity of its buffer, since a small read
+ * in a large pool segment holds the whole segment.
+ *
+ * A getter that would push the queue over its budget (-Didc.queueBytes, 8 MB by default) blocks in put() until the
+ * writer drains, so a disk slower than the network slows the connections down (their sockets stop being read and
+ * TCP or HTTP/2 flow control pushes back on the server) instead of filling the heap. A chunk is always accepted into
+ * an empty queue, so a chunk larger than the budget cannot deadlock.
+ *
+ * Once half the budget is queued, or the end marker arrives, the writer is woken right away instead of at its next
+ * FLUSH_INTERVAL, which bounds both the memory held and the latency of a full batch. The end marker never blocks.
+ */
+class ChunkQueue {
+    static final long DEFAULT_BUDGET = Long.getLong("idc.queueBytes", 8L << 20);
+    private static final Metrics METRICS = Metrics.get();
+
+    private final long budget;
+    private final long wakeupBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition flushable = lock.newCondition();
+    private Chunk[] ring = new Chunk[64];
+    private int head;
+    private int count;
+    private long bytes;
+    private boolean ended;
+    private IOException failure;
+    private Runnable wakeup;
+
+    ChunkQueue() {
+        this(DEFAULT_BUDGET);
+    }
+
+    /**
+     * @param budget most bytes of chunk buffers held at once
+     */
+    ChunkQueue(long budget) {
+        this.budget = Math.max(1, budget);
+        this.wakeupBytes = Math.max(1, this.budget / 2);
+    }
+
+    /**
+     * sets what to run when a batch is worth writing, for a writer that does not wait in awaitFlush()
+     * @param wakeup
+     */
+    void setWakeup(Runnable wakeup) {
+        this.wakeup = wakeup;
+    }
+
+    /**
+     * adds a chunk, blocking while the queue is over its budget
+     * @param chunk
+     * @throws IOException if the writer failed, or InterruptedIOException if interrupted while blocked
+     */
+    void put(Chunk chunk) throws IOException {
+        boolean wake;
+        lock.lock();
+        try {
+            if (bytes > 0 && bytes + footprint(chunk) > budget && failure == null) {
+                long start = System.nanoTime();
+                try {
+                    while (bytes > 0 && bytes + footprint(chunk) > budget && failure == null) {
+                        notFull.await();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while the write queue was full");
+                } finally {
+                    METRICS.queueWait(System.nanoTime() - start);
+                }
+            }
+            if (failure != null) {
+                throw new IOException("Writer failed: " + failure.getMessage(), failure);
+            }
+            wake = enqueue(chunk);
+        } finally {
+            lock.unlock();
+        }
+        wakeWriter(wake);
+    }
+
+    /**
+     * adds the end marker, which is never blocked by the budget
+     */
+    void putEndMarker() {
+        lock.lock();
+        try {
+            enqueue(new Chunk(null, -1, 0));
+        } finally {
+            lock.unlock();
+        }
+        wakeWriter(true);
+    }
+
+    private boolean enqueue(Chunk chunk) {
+        if (count == ring.length) {
+            Chunk[] grown = new Chunk[ring.length * 2];
+            for (int i = 0; i < count; i++) {
+                grown[i] = ring[(head + i) % ring.length];
+            }
+            ring = grown;
+            head = 0;
+        }
+        ring[(head + count) % ring.length] = chunk;
+        count++;
+        boolean wasFlushable = ended || bytes >= wakeupBytes;
+        bytes += footprint(chunk);
+        ended |= chunk.getData() == null;
+        boolean isFlushable = ended || bytes >= wakeupBytes;
+        if (isFlushable) {
+            flushable.signal();
+        }
+        return isFlushable && !wasFlushable;
+    }
+
+    private static long footprint(Chunk chunk) {
+        return chunk.getData() == null ? 0 : Math.max(chunk.getSize_in_bytes(), chunk.getData().capacity());
+    }
+
+    private void wakeWriter(boolean wake) {
+        Runnable runnable = wakeup;
+        if (wake && runnable != null) {
+            runnable.run();
+        }
+    }
+
+    /**
+     * moves every queued chunk to target, in arrival order, and unblocks the getters
+     * @param target
+     * @return number of chunks moved
+     */
+    int drainTo(Collection<? super Chunk> target) {
+        lock.lock();
+        try {
+            int drained = count;
+            for (int i = 0; i < drained; i++) {
+                int index = (head + i) % ring.length;
+                target.add(ring[index]);
+                ring[index] = null;
+            }
+            head = 0;
+            count = 0;
+            bytes = 0;
+            ended = false;
+            if (drained > 0) {
+                notFull.signalAll();
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * waits until half the budget is queued or the end marker arrived
+     * @param timeoutMillis
+     * @throws InterruptedException
+     */
+    void awaitFlush(long timeoutMillis) throws InterruptedException {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lock.lock();
+        try {
+            while (!ended && bytes < wakeupBytes && nanos > 0) {
+                nanos = flushable.awaitNanos(nanos);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * stops accepting chunks after the writer failed: blocked and later put() calls throw, and queued chunks
+     * are returned to their pool
+     * @param cause
+     */
+    void fail(IOException cause) {
+        lock.lock();
+        try {
+            failure = cause;
+            for (int i = 0; i < count; i++) {
+                ring[(head + i) % ring.length].release();
+                ring[(head + i) % ring.length] = null;
+            }
+            head = 0;
+            count = 0;
+            bytes = 0;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of queued chunks
+     */
+    int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return bytes of chunk buffers queued
+     */
+    long getBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
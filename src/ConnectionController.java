@@ -0,0 +1,105 @@
+/**
+ * Chooses how many connections a download uses, between minConnections and maxConnections.
+ *
+ * The controller is fed the aggregate throughput of every sampling interval and hill-climbs: while adding
+ * connections still raises throughput by more than GAIN_THRESHOLD it keeps adding (a quarter more each step),
+ * as soon as a step stops paying off it goes back to the best count seen and holds there, probing one more
+ * connection every HOLD_INTERVALS intervals in case the path changed. Failed ranges halve the count (AIMD),
+ * since they usually mean the origin or the path is overloaded.
+ */
+class ConnectionController {
+    static final long SAMPLE_INTERVAL = Long.getLong("idc.adaptive.interval", 2000);
+    private static final double GAIN_THRESHOLD = 0.05;
+    private static final int HOLD_INTERVALS = 15;
+
+    private final int minConnections;
+    private final int maxConnections;
+    private int current;
+    private int previous;
+    private double previousThroughput = 0;
+    private int bestConnections;
+    private double bestThroughput = 0;
+    private int holdIntervals = 0;
+    private boolean warmingUp = true;
+
+    ConnectionController(int minConnections, int maxConnections) {
+        this.minConnections = Math.max(1, minConnections);
+        this.maxConnections = Math.max(this.minConnections, maxConnections);
+        this.current = this.minConnections;
+        this.previous = this.current;
+        this.bestConnections = this.current;
+    }
+
+    /**
+     * @return true if the number of connections never changes
+     */
+    boolean isFixed() {
+        return minConnections == maxConnections;
+    }
+
+    /**
+     * @return number of connections to use now
+     */
+    int current() {
+        return current;
+    }
+
+    int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * feeds one sampling interval
+     * @param throughput bytes per second delivered during the interval
+     * @param failures number of ranges that failed during the interval
+     * @return number of connections to use from now on
+     */
+    int sample(double throughput, long failures) {
+        if (isFixed()) {
+            return current;
+        }
+        if (warmingUp) {
+            //the interval after a change includes connection setup, judge the next one
+            warmingUp = false;
+            return current;
+        }
+        if (failures > 0) {
+            return change(Math.max(minConnections, current / 2), throughput);
+        }
+        if (throughput > bestThroughput) {
+            bestThroughput = throughput;
+            bestConnections = current;
+        }
+
+        if (current > previous) {
+            if (throughput > previousThroughput * (1 + GAIN_THRESHOLD) && current < maxConnections) {
+                return change(Math.min(maxConnections, current + Math.max(1, current / 4)), throughput);
+            }
+            if (throughput <= previousThroughput * (1 + GAIN_THRESHOLD)) {
+                //the last step did not help, fall back and hold
+                holdIntervals = HOLD_INTERVALS;
+                return change(Math.min(bestConnections, current), throughput);
+            }
+        }
+        if (holdIntervals > 0) {
+            holdIntervals--;
+            previousThroughput = throughput;
+            return current;
+        }
+        if (current < maxConnections) {
+            return change(current + 1, throughput);
+        }
+        previousThroughput = throughput;
+        return current;
+    }
+
+    private int change(int connections, double throughput) {
+        previous = current;
+        previousThroughput = throughput;
+        if (connections != current) {
+            current = connections;
+            warmingUp = true;
+        }
+        return current;
+    }
+}
@@ -0,0 +1,134 @@
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A per-origin pool of keep-alive HttpConnections.
+ *
+ * Getters acquire a connection for each range and release it when the range is done, so consecutive ranges
+ * reuse the same TCP (and TLS) session instead of paying a new handshake each. On release the pool retires
+ * connections that are broken, left a response unread, or deliver much less than the origin's typical rate.
+ */
+class ConnectionPool {
+    static final int CONNECT_TIMEOUT = 5000;
+    static final int READ_TIMEOUT = 10000;
+    private static final long KEEP_ALIVE_NANOS = 30_000_000_000L;
+    private static final double SLOW_FRACTION = 0.25;
+    private static final double TYPICAL_WEIGHT = 0.2;
+
+    private final Map<String, ArrayDeque<HttpConnection>> idle = new HashMap<>();
+    private final Map<String, Double> typicalThroughput = new HashMap<>();
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong retiredSlow = new AtomicLong();
+    private final AtomicLong retiredBroken = new AtomicLong();
+
+    /**
+     * @param url
+     * @return an idle connection to url's origin, or a new one
+     * @throws IOException
+     */
+    HttpConnection acquire(URL url) throws IOException {
+        String key = HttpConnection.keyOf(url);
+        List<HttpConnection> expired = new ArrayList<>();
+        try {
+            synchronized (this) {
+                ArrayDeque<HttpConnection> connections = idle.get(key);
+                HttpConnection connection;
+                while (connections != null && (connection = connections.pollFirst()) != null) {
+                    if (connection.isReusable() && System.nanoTime() - connection.getLastUsed() < KEEP_ALIVE_NANOS) {
+                        reused.incrementAndGet();
+                        return connection;
+                    }
+                    expired.add(connection);
+                }
+            }
+        } finally {
+            //closing may block (TLS close_notify), so it happens outside the monitor, which would pin a virtual thread
+            for (HttpConnection i : expired) {
+                closeQuietly(i);
+            }
+        }
+        return openNew(url);
+    }
+
+    /**
+     * @param url
+     * @return a new connection to url's origin, bypassing idle ones
+     * @throws IOException
+     */
+    HttpConnection openNew(URL url) throws IOException {
+        HttpConnection connection = HttpConnection.open(url, CONNECT_TIMEOUT, READ_TIMEOUT);
+        opened.incrementAndGet();
+        return connection;
+    }
+
+    /**
+     * returns a connection after use, keeping it only if it is healthy and not much slower than its origin's typical rate
+     * @param connection
+     */
+    void release(HttpConnection connection) {
+        if (!connection.isReusable()) {
+            retiredBroken.incrementAndGet();
+            closeQuietly(connection);
+            return;
+        }
+        synchronized (this) {
+            double throughput = connection.getThroughput();
+            boolean slow = false;
+            if (throughput > 0) {
+                Double typical = typicalThroughput.get(connection.key);
+                slow = typical != null && connection.getRequests() >= 2 && throughput < SLOW_FRACTION * typical;
+                if (!slow) {
+                    typicalThroughput.put(connection.key,
+                            typical == null ? throughput : TYPICAL_WEIGHT * throughput + (1 - TYPICAL_WEIGHT) * typical);
+                }
+            }
+            if (!slow) {
+                idle.computeIfAbsent(connection.key, k -> new ArrayDeque<>()).addFirst(connection);
+                return;
+            }
+        }
+        retiredSlow.incrementAndGet();
+        closeQuietly(connection);
+    }
+
+    /**
+     * drops a connection that failed
+     * @param connection
+     */
+    void discard(HttpConnection connection) {
+        retiredBroken.incrementAndGet();
+        closeQuietly(connection);
+    }
+
+    /**
+     * closes every idle connection
+     */
+    synchronized void close() {
+        for (ArrayDeque<HttpConnection> i : idle.values()) {
+            for (HttpConnection connection : i) {
+                closeQuietly(connection);
+            }
+        }
+        idle.clear();
+    }
+
+    private static void closeQuietly(HttpConnection connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "opened=" + opened.get() + " reused=" + reused.get()
+                + " retiredSlow=" + retiredSlow.get() + " retiredBroken=" + retiredBroken.get();
+    }
+}
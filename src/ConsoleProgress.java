@@ -0,0 +1,28 @@
+/**
+ * Prints "Downloaded: N%" to standard output whenever the completed percentage changes, and the download's
+ * messages to standard error.
+ */
+class ConsoleProgress implements ProgressListener {
+    private final String label;
+    private int percent = -1;
+
+    /**
+     * @param label printed before every progress line
+     */
+    ConsoleProgress(String label) {
+        this.label = label;
+    }
+
+    @Override
+    public void progress(ProgressEvent event) {
+        if (event.getPercent() != percent) {
+            percent = event.getPercent();
+            System.out.println(label + "Downloaded: " + percent + "%");
+        }
+    }
+
+    @Override
+    public void message(String text) {
+        System.err.println(label + text);
+    }
+}
@@ -0,0 +1,401 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * The state of downloading one file: its mirrors, metadata, queue, writer, bandwidth share and scheduler.
+ *
+ * Threads, buffers, connections and the global bandwidth budget are shared through the DownloadManager,
+ * so a download only costs its own bookkeeping. It prints nothing: progress and messages go to the listeners of
+ * its ProgressTracker, and the reason a run failed is kept for getFailure().
+ *
+ * stop() ends a run early, keeping the partial file and its metadata, so the next run() resumes it.
+ */
+class Download {
+    private final DownloadManager manager;
+    private final String urls;
+    private final String filename;
+    private final MirrorSet mirrors;
+    private final double weight;
+    private final ProgressTracker progress;
+    private long filesize;
+    private volatile boolean stopped;
+    private volatile RangeScheduler scheduler;
+    private volatile TokenBucket tokenBucket;
+    private volatile String failure;
+
+    /**
+     * @param manager
+     * @param urls URL to download, or comma separated URLs of mirrors of the same file
+     * @param weight share of the manager's bandwidth budget relative to other downloads
+     */
+    Download(DownloadManager manager, String urls, double weight) {
+        this(manager, urls, weight, DownloadableMetadata.getName(urls.split(",")[0].trim()));
+    }
+
+    /**
+     * @param manager
+     * @param urls URL to download, or comma separated URLs of mirrors of the same file
+     * @param weight share of the manager's bandwidth budget relative to other downloads
+     * @param filename where to write the file, its metadata goes next to it
+     */
+    Download(DownloadManager manager, String urls, double weight, String filename) {
+        this.manager = manager;
+        this.urls = urls.trim();
+        this.filename = filename;
+        this.weight = weight;
+        this.progress = new ProgressTracker(getName());
+        this.mirrors = new MirrorSet(urls, progress);
+    }
+
+    double getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return file name of the download, without its directory
+     */
+    String getName() {
+        return Paths.get(filename).getFileName().toString();
+    }
+
+    /**
+     * @return where the file is written
+     */
+    Path getPath() {
+        return Paths.get(filename).toAbsolutePath().normalize();
+    }
+
+    /**
+     * @return the URLs the download was created with
+     */
+    String getUrls() {
+        return urls;
+    }
+
+    /**
+     * @return the progress of the download, which takes ProgressListeners
+     */
+    ProgressTracker getProgress() {
+        return progress;
+    }
+
+    /**
+     * @return why the last run failed, or null
+     */
+    String getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return true if the last run was ended by stop()
+     */
+    boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * clears the stop and the failure of the last run, before running again
+     */
+    void reset() {
+        stopped = false;
+        failure = null;
+    }
+
+    /**
+     * ends the current run at the next read of every connection, keeping what was written for the next run
+     */
+    void stop() {
+        stopped = true;
+        RangeScheduler current = scheduler;
+        if (current != null) {
+            current.abort();
+        }
+        TokenBucket bucket = tokenBucket;
+        if (bucket != null) {
+            bucket.terminate(); //releases getters waiting for tokens
+        }
+    }
+
+    /**
+     * Initiate the file's metadata, and iterate over missing ranges. For each:
+     * 1. Setup the Queue, TokenBucket, DownloadableMetadata, FileWriter, and a RangeScheduler feeding the manager's HTTPRangeGetter workers
+     * 2. Join the HTTPRangeGetters, send finish marker to the Queue and terminate the TokenBucket
+     * 3. Join the FileWriter
+     *
+     * Finally, verify the file and delete the metadata as needed.
+     *
+     * @return true if the download succeeded
+     */
+    boolean run() {
+        return run(true);
+    }
+
+    /**
+     * @param mayRestart whether to start over once if the file changed on the server
+     * @return true if the download succeeded
+     */
+    private boolean run(boolean mayRestart) {
+        String url = mirrors.getPrimaryUrl();
+
+        //load the metadata of an earlier run; if it knows the file's validators, resume without probing
+        DownloadableMetadata metadata = loadMetaData();
+        ServerTraits stored = metadata == null ? null : metadata.getTraits();
+        try {
+            if (stored != null && stored.acceptRanges && stored.validator() != null) {
+                filesize = mirrors.resume(stored);
+            } else {
+                filesize = mirrors.probe();
+            }
+        }
+        catch (IOException e){
+            return fail("Failed to connect: " + e.getMessage());
+        }
+        if (stopped) {
+            return false;
+        }
+        ServerTraits traits = mirrors.getTraits();
+        if (metadata != null && (metadata.getFilesize() != filesize || (stored != null && !stored.sameVersion(traits)))) {
+            progress.message("The file changed on the server, starting over.");
+            removePartial(metadata.getFilename());
+            metadata = null;
+        }
+        if (metadata == null) {
+            metadata = new DownloadableMetadata(url, filename, filesize, HTTPRangeGetter.getChunkSize());
+        } else {
+            int mismatched = metadata.getBlockHashes().verifyResumed(metadata);
+            if (mismatched > 0) {
+                progress.message(mismatched + " blocks written before the restart do not match their hashes, downloading them again.");
+            }
+        }
+        metadata.setTraits(traits);
+
+        //init chunkQueue, bounded in bytes so a slow disk slows the getters down
+        ChunkQueue queue = new ChunkQueue();
+
+        //init tokenBucket, this download's share of the manager's budget
+        TokenBucket tokenBucket = manager.getBandwidth().addDownload(weight);
+        this.tokenBucket = tokenBucket;
+
+        //init fileWriter, flushed by the manager's writer threads
+        FileWriter fileWriter = new FileWriter(metadata, queue, progress);
+        RangeScheduler scheduler = null;
+        boolean writing = false;
+        boolean finished = false;
+        try {
+            fileWriter.start(manager.getWriterExecutor());
+            writing = true;
+
+            long partitions = filesize / RangeScheduler.MIN_PARTITION_SIZE;
+            int realMaxWorkers = (int) Math.max(1, Math.min(partitions, manager.getMaxWorkers()));
+            if (!traits.acceptRanges) {
+                progress.message("The server does not support ranges, downloading with one connection.");
+                realMaxWorkers = 1;
+            }
+            ConnectionController controller = new ConnectionController(Math.min(manager.getMinWorkers(), realMaxWorkers), realMaxWorkers);
+
+            scheduler = new RangeScheduler(mirrors, metadata, queue, tokenBucket,
+                    manager.getChunkPool(), manager.getConnectionPool(), manager.getConnectionPermits(), manager.getBandwidth(), progress);
+            this.scheduler = scheduler;
+            if (stopped) {
+                scheduler.abort(); //stop() ran before the scheduler was published
+            }
+            while (!metadata.isCompleted() && fileWriter.getFailure() == null && !mirrors.hasChanged() && !stopped) {
+                try {
+                    long doneBefore = metadata.getDoneBytes();
+                    scheduler.run(manager.getWorkerExecutor(), controller);
+                    if (scheduler.getFailure() != null) {
+                        failure = scheduler.getFailure();
+                        break;
+                    }
+                    //the ranges still queued would look missing to the next round until they are written
+                    fileWriter.drain();
+                    if (!metadata.isCompleted() && !stopped && metadata.getDoneBytes() == doneBefore) {
+                        Thread.sleep(1000); //a round that delivered nothing, do not spin
+                    }
+                }
+                catch (InterruptedException e){
+                    failure = "Interrupted.";
+                    break;
+                }
+            }
+            finished = true;
+        } finally {
+            //also after an unexpected exception: stop the getters, let the writer flush and leave the bandwidth tree
+            this.scheduler = null;
+            if (!finished) {
+                if (scheduler != null) {
+                    scheduler.abort();
+                }
+                tokenBucket.terminate();
+                closeHashes(metadata.getBlockHashes());
+            }
+            if (writing) {
+                queue.putEndMarker();
+                try {
+                    fileWriter.awaitFinished();
+                }
+                catch(InterruptedException e){
+                    failure = "Interrupted.";
+                }
+            }
+            tokenBucket.terminate();
+            manager.getBandwidth().removeDownload(tokenBucket);
+            this.tokenBucket = null;
+        }
+
+        if (mirrors.hasChanged() && !metadata.isCompleted()) {
+            closeHashes(metadata.getBlockHashes());
+            removePartial(metadata.getFilename());
+            if (mayRestart && !stopped) {
+                progress.message("The file changed on the server, starting over.");
+                return run(false);
+            }
+            failure = "The file changed on the server again.";
+        }
+        if (!metadata.isCompleted()) {
+            closeHashes(metadata.getBlockHashes());
+            if (failure == null && fileWriter.getFailure() != null) {
+                failure = "Failed to write: " + fileWriter.getFailure().getMessage();
+            }
+            return stopped ? false : fail(failure != null ? failure : "Download incomplete.");
+        }
+        boolean verified = verify(metadata.getBlockHashes());
+        removeMetadata(metadata.getFilename() + ".metadata");
+        removeMetadata(metadata.getFilename() + ".metadata.bak");
+        if (!verified) {
+            return false;
+        }
+        if (mirrors.size() > 1)
+            progress.message("Mirrors: " + mirrors);
+        return true;
+    }
+
+    /**
+     * @param reason
+     * @return false
+     */
+    private boolean fail(String reason) {
+        failure = reason;
+        progress.message(reason);
+        return false;
+    }
+
+    /**
+     * finishes the block hashes, and checks the whole file against -Didc.sha256 if set
+     * @param hashes
+     * @return false if the file does not match
+     */
+    private boolean verify(BlockHashes hashes) {
+        try {
+            if (hashes.isEnabled()) {
+                progress.message("Merkle root of " + hashes.getBlockCount() + " blocks of " + hashes.getBlockSize()
+                        + " bytes: " + BlockHashes.toHex(hashes.finish()));
+            }
+            byte[] digest = hashes.fileDigest();
+            if (digest != null && !BlockHashes.toHex(digest).equalsIgnoreCase(BlockHashes.EXPECTED_SHA256.trim())) {
+                fail("SHA-256 mismatch, expected " + BlockHashes.EXPECTED_SHA256.trim() + " but got " + BlockHashes.toHex(digest));
+                return false;
+            }
+            if (digest != null) {
+                progress.message("SHA-256 verified.");
+            }
+            return true;
+        } catch (IOException e) {
+            return fail("Failed to verify: " + e.getMessage());
+        } finally {
+            closeHashes(hashes);
+        }
+    }
+
+    private static void closeHashes(BlockHashes hashes) {
+        try {
+            hashes.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Removes existing metadata
+     * @param i_filename
+     */
+    private static void removeMetadata(String i_filename) {
+        File metadata = new File(i_filename);
+        metadata.delete();
+    }
+
+    /**
+     * Removes a partial download and its metadata, to start over
+     * @param i_filename
+     */
+    private static void removePartial(String i_filename) {
+        removeMetadata(DownloadableMetadata.getMetadataName(i_filename));
+        removeMetadata(DownloadableMetadata.getMetadataName(i_filename) + ".bak");
+        new File(i_filename).delete();
+    }
+
+    /**
+     * loads the metadata of an earlier run
+     * @return the metadata, or null if there is none
+     */
+    private DownloadableMetadata loadMetaData() {
+        String metadataName = DownloadableMetadata.getMetadataName(filename);
+        if(Files.exists(Paths.get(metadataName))){
+             DownloadableMetadata readMeta = tryLoadJournal(metadataName);
+             if(readMeta != null){
+                 return readMeta;
+             }
+             readMeta = tryLoadMetadata(metadataName);
+             if(readMeta != null){
+                 return readMeta;
+             }
+             return tryLoadMetadata(metadataName + ".bak");
+        }
+        else{
+            return null;
+        }
+    }
+
+    /**
+     * rebuild metadata from its journal if exists.
+     * @param metadataName
+     * @return metadata, or null if the file is not a journal
+     */
+    private DownloadableMetadata tryLoadJournal(String metadataName) {
+        try {
+            return MetadataJournal.load(metadataName);
+        }
+        catch (IOException e){
+            progress.message("Failed to load metadata journal.");
+            return null;
+        }
+    }
+
+    /**
+     * load metadata written by older versions if exists.
+     * @param metadataName
+     * @return metadata
+     */
+    private DownloadableMetadata tryLoadMetadata(String metadataName) {
+        try (ObjectInputStream stream = new ObjectInputStream(new FileInputStream(metadataName))) {
+            Object readMeta = stream.readObject();
+            if(readMeta instanceof DownloadableMetadata){
+                return (DownloadableMetadata)readMeta;
+            }
+            return null;
+        }
+        catch (IOException e){
+            progress.message("Failed to load metadata.");
+            return null;
+        }
+        catch(ClassNotFoundException e){
+            progress.message("Failed to load metadata.");
+            return null;
+        }
+
+    }
+}
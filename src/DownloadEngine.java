@@ -0,0 +1,150 @@
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads files in the calling process: submit() queues a download and returns a DownloadHandle at once.
+ *
+ * An engine is meant to live as long as the service using it. Every download it runs shares one DownloadManager
+ * (getter and writer threads, chunk buffers, keep-alive connections, the bandwidth budget and the cap on
+ * connections), and up to DownloadManager.MAX_CONCURRENT_DOWNLOADS (-Didc.maxDownloads) run at once while the
+ * rest wait in submission order, so thousands of submissions cost a handle each until their turn. Nothing is
+ * printed: progress and messages go to the ProgressListeners of each download.
+ *
+ * A destination has at most one download that did not end yet: submitting the same URLs to it again returns that
+ * download's handle, and submitting other URLs to it is refused. A download ends when its run returned, not when
+ * its future completed, so a cancelled download that is still stopping keeps its destination and a submission to
+ * it is refused until the file and metadata are no longer written.
+ *
+ * Like every class of the downloader, the API is in the unnamed package, which code in a named package cannot
+ * import. A service embeds it by compiling its own entry point into the unnamed package, or by loading
+ * DownloadEngine by name through reflection. Giving the API a named package means moving every class with it,
+ * since code in a named package cannot reach the unnamed one either.
+ */
+public class DownloadEngine implements AutoCloseable {
+    private final DownloadManager manager;
+    private final ExecutorService coordinators;
+    private final Map<Path, DownloadHandle> live = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+
+    /**
+     * @param minConnections least number of concurrent connections per download
+     * @param maxConnections most number of concurrent connections per download
+     * @param maxBytesPerSecond limit on the bytes-per-second of all downloads together, or null
+     */
+    public DownloadEngine(int minConnections, int maxConnections, Long maxBytesPerSecond) {
+        if (minConnections < 1 || maxConnections < minConnections) {
+            throw new IllegalArgumentException("Invalid connections: " + minConnections + "-" + maxConnections);
+        }
+        this.manager = new DownloadManager(minConnections, maxConnections, maxBytesPerSecond);
+        this.coordinators = Executors.newFixedThreadPool(Math.max(1, DownloadManager.MAX_CONCURRENT_DOWNLOADS),
+                DownloadManager.daemonThreads("idc-download"));
+    }
+
+    /**
+     * @param urls URL to download, or comma separated URLs of mirrors of the same file
+     * @return the queued download
+     */
+    public DownloadHandle submit(String urls) {
+        return submit(urls, 1, null);
+    }
+
+    /**
+     * downloads into the working directory, under the last path segment of the first URL
+     * @param urls URL to download, or comma separated URLs of mirrors of the same file
+     * @param weight share of the bandwidth budget relative to other downloads
+     * @param listener receives every progress event and message of the download, or null
+     * @return the queued download
+     */
+    public DownloadHandle submit(String urls, double weight, ProgressListener listener) {
+        return submit(urls, null, weight, listener);
+    }
+
+    /**
+     * @param urls URL to download, or comma separated URLs of mirrors of the same file
+     * @param destination file to write, whose metadata goes next to it, or null for the default name
+     * @param weight share of the bandwidth budget relative to other downloads
+     * @param listener receives every progress event and message of the download, or null
+     * @return the queued download, or the download of the same URLs to destination that did not end yet
+     * @throws IllegalStateException if another download to destination did not end yet, or a cancelled one is
+     * still stopping
+     */
+    public DownloadHandle submit(String urls, Path destination, double weight, ProgressListener listener) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Weight must be positive: " + weight);
+        }
+        if (closed) {
+            throw new IllegalStateException("The download engine is closed");
+        }
+        Download download = destination == null ? new Download(manager, urls, weight)
+                : new Download(manager, urls, weight, destination.toString());
+        DownloadHandle handle = new DownloadHandle(this, download);
+        DownloadHandle current = live.putIfAbsent(download.getPath(), handle);
+        if (current != null) {
+            if (!current.getUrls().equals(download.getUrls())) {
+                throw new IllegalStateException(download.getPath() + " is already being downloaded from " + current.getUrls());
+            }
+            if (current.getFuture().isDone()) {
+                throw new IllegalStateException("The download of " + download.getPath() + " is still stopping");
+            }
+            if (listener != null) {
+                current.addProgressListener(listener);
+            }
+            return current;
+        }
+        if (listener != null) {
+            download.getProgress().addListener(listener);
+        }
+        execute(handle);
+        return handle;
+    }
+
+    /**
+     * queues a run of handle's download
+     * @param handle
+     */
+    void execute(DownloadHandle handle) {
+        try {
+            coordinators.execute(handle::run);
+        } catch (RejectedExecutionException e) {
+            handle.cancel(); //resumed after close()
+        }
+    }
+
+    /**
+     * frees the destination of a download that ended for good, called once no run of it is left
+     * @param handle
+     */
+    void ended(DownloadHandle handle) {
+        live.remove(handle.getPath(), handle);
+    }
+
+    /**
+     * @return number of downloads that were submitted and did not end yet
+     */
+    public int getPending() {
+        return live.size();
+    }
+
+    /**
+     * cancels every download that did not end yet, waits for the running ones to stop, and stops the shared threads
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (DownloadHandle i : live.values()) {
+            i.cancel();
+        }
+        coordinators.shutdown();
+        try {
+            coordinators.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        manager.close();
+    }
+}
@@ -0,0 +1,195 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A download submitted to a DownloadEngine.
+ *
+ * getFuture() completes with the path of the downloaded file, or exceptionally with an IOException saying why
+ * the download failed. pause() stops the download at the next read of every connection and keeps the partial
+ * file and its metadata, and resume() queues it again to continue where it stopped. cancel(), like cancelling
+ * the future, stops it for good; the partial file is kept, so submitting the same URL later resumes it.
+ * It is in the unnamed package, like DownloadEngine.
+ */
+public class DownloadHandle {
+    private final DownloadEngine engine;
+    private final Download download;
+    private final CompletableFuture<Path> future = new CompletableFuture<>();
+    private State state = State.QUEUED;
+    private State afterStop; //what a running download becomes once stop() ended its run, or null
+
+    /**
+     * @param engine runs the download
+     * @param download
+     */
+    DownloadHandle(DownloadEngine engine, Download download) {
+        this.engine = engine;
+        this.download = download;
+        future.whenComplete((path, error) -> {
+            if (future.isCancelled()) {
+                stop(State.CANCELLED);
+            }
+        });
+    }
+
+    /**
+     * runs the download once on the calling thread, unless it was paused or cancelled while queued
+     */
+    void run() {
+        synchronized (this) {
+            if (state != State.QUEUED) {
+                return;
+            }
+            state = State.RUNNING;
+            download.reset();
+        }
+        boolean succeeded = false;
+        RuntimeException error = null;
+        try {
+            succeeded = download.run();
+        } catch (RuntimeException e) {
+            error = e;
+        }
+        State ended;
+        synchronized (this) {
+            if (succeeded) {
+                ended = State.SUCCEEDED;
+            } else if (afterStop != null && download.isStopped()) {
+                ended = afterStop;
+            } else {
+                ended = State.FAILED;
+            }
+            state = ended;
+            afterStop = null;
+        }
+        if (ended == State.QUEUED) {
+            engine.execute(this); //resumed while it was stopping
+            return;
+        }
+        if (ended != State.PAUSED) {
+            engine.ended(this); //before the future completes, so its callbacks can submit to the destination again
+        }
+        if (ended == State.SUCCEEDED) {
+            future.complete(download.getPath());
+        } else if (ended == State.FAILED) {
+            future.completeExceptionally(error != null ? error
+                    : new IOException(download.getName() + ": " + download.getFailure()));
+        }
+    }
+
+    /**
+     * @param next PAUSED or CANCELLED
+     */
+    private void stop(State next) {
+        synchronized (this) {
+            if (state == State.QUEUED || state == State.PAUSED) {
+                state = next;
+                if (next == State.CANCELLED) {
+                    engine.ended(this); //no run is touching the file
+                }
+                return;
+            }
+            if (state != State.RUNNING || afterStop == State.CANCELLED) {
+                return;
+            }
+            afterStop = next;
+        }
+        download.stop();
+    }
+
+    /**
+     * stops the download, keeping what was downloaded for resume()
+     */
+    public void pause() {
+        stop(State.PAUSED);
+    }
+
+    /**
+     * queues a paused download again
+     */
+    public void resume() {
+        synchronized (this) {
+            if (state == State.RUNNING && afterStop == State.PAUSED) {
+                afterStop = State.QUEUED;
+                return;
+            }
+            if (state != State.PAUSED) {
+                return;
+            }
+            state = State.QUEUED;
+        }
+        engine.execute(this);
+    }
+
+    /**
+     * stops the download for good and cancels the future at once, while a running download may still be stopping:
+     * its destination stays taken until the run returned
+     */
+    public void cancel() {
+        future.cancel(false);
+    }
+
+    /**
+     * @return completes with the downloaded file, or exceptionally if the download failed or was cancelled
+     */
+    public CompletableFuture<Path> getFuture() {
+        return future;
+    }
+
+    /**
+     * @return the latest progress, or null before the download started writing
+     */
+    public ProgressEvent getProgress() {
+        return download.getProgress().getLast();
+    }
+
+    /**
+     * @param listener receives every later progress event and message of the download
+     */
+    public void addProgressListener(ProgressListener listener) {
+        download.getProgress().addListener(listener);
+    }
+
+    public void removeProgressListener(ProgressListener listener) {
+        download.getProgress().removeListener(listener);
+    }
+
+    /**
+     * @return file name of the download
+     */
+    public String getName() {
+        return download.getName();
+    }
+
+    /**
+     * @return where the file is written
+     */
+    public Path getPath() {
+        return download.getPath();
+    }
+
+    String getUrls() {
+        return download.getUrls();
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    @Override
+    public String toString() {
+        return getName() + " " + getState();
+    }
+
+    /**
+     * where a download is in its life
+     */
+    public enum State {
+        QUEUED,
+        RUNNING,
+        PAUSED,
+        SUCCEEDED,
+        FAILED,
+        CANCELLED
+    }
+}
@@ -0,0 +1,144 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The resources shared by every download of a DownloadEngine: one pool of getter threads, a few writer threads
+ * that flush every download's queue in turn, one ChunkPool, one ConnectionPool, and a global cap on connections
+ * (-Didc.maxConnections, by default the per-download maximum but at least one per concurrent download).
+ *
+ * Bandwidth is limited by a BandwidthTree: a global budget, per-origin and per-connection ceilings, and a
+ * weighted fair share of the budget for each running download.
+ *
+ * With -Didc.threads=virtual every getter runs on its own virtual thread (Java 21), so hundreds of connections
+ * cost heap instead of OS threads: getters block only in socket reads, TokenBucket parks, and locks that are not
+ * monitors. The writers and the rebalancing stay on a few platform threads since they wake on a timer anyway.
+ * On older runtimes the mode falls back to platform threads.
+ */
+class DownloadManager {
+    static final int WRITER_THREADS = Integer.getInteger("idc.writerThreads", 2);
+    static final int MAX_CONCURRENT_DOWNLOADS = Integer.getInteger("idc.maxDownloads", 4);
+    static final ThreadMode THREAD_MODE = ThreadMode.fromProperty(System.getProperty("idc.threads"));
+    private static final Method VIRTUAL_EXECUTOR = findVirtualExecutor();
+
+    private final int minWorkers;
+    private final int maxWorkers;
+    private final BandwidthTree bandwidth;
+    private final ExecutorService workerExecutor = newWorkerExecutor();
+    private final ScheduledExecutorService writerExecutor = Executors.newScheduledThreadPool(WRITER_THREADS, daemonThreads("idc-writer"));
+    private final ChunkPool chunkPool = new ChunkPool(HTTPRangeGetter.MAX_READ_SIZE);
+    private final ConnectionPool connectionPool = new ConnectionPool();
+    private final Semaphore connectionPermits;
+
+    /**
+     * @param minWorkers least number of concurrent connections per download
+     * @param maxWorkers most number of concurrent connections per download
+     * @param maxBytesPerSecond limit on the bytes-per-second of all downloads together, or null
+     */
+    DownloadManager(int minWorkers, int maxWorkers, Long maxBytesPerSecond) {
+        this.minWorkers = minWorkers;
+        this.maxWorkers = maxWorkers;
+        this.bandwidth = new BandwidthTree(maxBytesPerSecond);
+        this.bandwidth.start(writerExecutor);
+        int maxConnections = Integer.getInteger("idc.maxConnections", Math.max(maxWorkers, MAX_CONCURRENT_DOWNLOADS));
+        this.connectionPermits = new Semaphore(Math.max(1, maxConnections), true);
+        Metrics.get().addPool(chunkPool);
+    }
+
+    /**
+     * @return an executor starting a thread per getter, virtual ones when THREAD_MODE asks for them and the runtime has them
+     */
+    private static ExecutorService newWorkerExecutor() {
+        if (VIRTUAL_EXECUTOR != null) {
+            try {
+                return (ExecutorService) VIRTUAL_EXECUTOR.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Failed to create virtual threads, using platform threads: " + e);
+            }
+        }
+        return Executors.newCachedThreadPool(daemonThreads("idc-getter"));
+    }
+
+    /**
+     * looks up Executors.newVirtualThreadPerTaskExecutor(), which only exists from Java 21
+     * @return the method, or null if virtual threads are not wanted or not available
+     */
+    private static Method findVirtualExecutor() {
+        if (THREAD_MODE != ThreadMode.VIRTUAL) {
+            return null;
+        }
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            System.err.println("Virtual threads need Java 21, using platform threads.");
+            return null;
+        }
+    }
+
+    static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    int getMinWorkers() {
+        return minWorkers;
+    }
+
+    int getMaxWorkers() {
+        return maxWorkers;
+    }
+
+    ExecutorService getWorkerExecutor() {
+        return workerExecutor;
+    }
+
+    ScheduledExecutorService getWriterExecutor() {
+        return writerExecutor;
+    }
+
+    BandwidthTree getBandwidth() {
+        return bandwidth;
+    }
+
+    ChunkPool getChunkPool() {
+        return chunkPool;
+    }
+
+    ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    Semaphore getConnectionPermits() {
+        return connectionPermits;
+    }
+
+    /**
+     * stops the shared threads and closes idle connections
+     */
+    void close() {
+        workerExecutor.shutdown();
+        writerExecutor.shutdown();
+        connectionPool.close();
+        Metrics.get().removePool(chunkPool);
+    }
+
+    /**
+     * selects what getters run on, set with -Didc.threads=platform|virtual
+     */
+    enum ThreadMode {
+        PLATFORM,
+        VIRTUAL;
+
+        static ThreadMode fromProperty(String value) {
+            return value == null ? PLATFORM : ThreadMode.valueOf(value.trim().toUpperCase());
+        }
+    }
+}
@@ -19,9 +19,12 @@ public class DownloadableMetadata implements Serializable {
     private String filename;
     private String url;
     private long m_fileSize;
-    private byte[] m_chunkMap;
-    private int m_chunkSize;
-    private int m_point = 0;
+    private RangeSet m_doneRanges;
+    private byte[] m_chunkMap; // legacy bitmap, only set when reading metadata written by older versions
+    private int m_chunkSize; // unit of the legacy chunk map and of the first partitions, reads are sized by the getters
+    private long m_cursor = 0;
+    private ServerTraits m_traits; // null when written by older versions
+    private transient BlockHashes m_blockHashes;
     public final int PARTITION_SIZE = 1000;
     Lock lock;
     private int lastDoneReturned = 0;
@@ -31,18 +34,45 @@ public class DownloadableMetadata implements Serializable {
 
 
     DownloadableMetadata(String url, long i_fileSize, int i_chunkSize) {
+        this(url, getName(url), i_fileSize, i_chunkSize);
+    }
+
+    /**
+     * @param url
+     * @param filename where the file is written, its metadata goes next to it
+     * @param i_fileSize
+     * @param i_chunkSize
+     */
+    DownloadableMetadata(String url, String filename, long i_fileSize, int i_chunkSize) {
         this.url = url;
-        this.filename = getName(url);
+        this.filename = filename;
         this.metadataFilename = getMetadataName(filename);
         m_fileSize = i_fileSize;
         m_chunkSize = i_chunkSize;
-        int arraySize = (int)(m_fileSize/i_chunkSize);
-        arraySize += m_fileSize % i_chunkSize == 0 ? 0 : 1;
-        m_chunkMap = new byte[arraySize];
+        m_doneRanges = new RangeSet();
         this.lock = new ReentrantLock(true);
 
     }
 
+    /**
+     * converts the legacy one-byte-per-chunk map into ranges when old metadata is loaded
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (m_doneRanges == null) {
+            m_doneRanges = new RangeSet();
+        }
+        if (m_chunkMap != null) {
+            for (int i = 0; i < m_chunkMap.length; i++) {
+                if (m_chunkMap[i] != 0) {
+                    long start = (long) i * m_chunkSize;
+                    m_doneRanges.add(start, Math.min(start + m_chunkSize, m_fileSize));
+                }
+            }
+            m_chunkMap = null;
+        }
+    }
+
     /**
      * adds ".metadata" to the file name
      * @param filename
@@ -52,6 +82,15 @@ public class DownloadableMetadata implements Serializable {
         return filename + ".metadata";
     }
 
+    /**
+     * @param metadataFilename
+     * @return the name of the file the metadata describes, or null if it is not a metadata name
+     */
+    static String getDataName(String metadataFilename) {
+        String suffix = getMetadataName("");
+        return metadataFilename.endsWith(suffix) ? metadataFilename.substring(0, metadataFilename.length() - suffix.length()) : null;
+    }
+
     /**
      * @param path
      * @return the name of the downloaded file
@@ -61,13 +100,36 @@ public class DownloadableMetadata implements Serializable {
         return path.substring(path.lastIndexOf('/') + 1, path.length());
     }
 
-    //unused
+    /**
+     * marks a range as downloaded
+     * @param range
+     */
     void addRange(Range range) {
+        lock.lock();
+        try {
+            m_doneRanges.add(range.getStart(), range.getEnd() + 1);
+        } finally {
+            lock.unlock();
+        }
+    }
 
+    /**
+     * marks [start, end) as not downloaded, e.g. a block whose bytes on disk no longer match their hash
+     * @param start first byte
+     * @param end one past the last byte
+     */
+    void removeRange(long start, long end) {
+        lock.lock();
+        try {
+            m_doneRanges.remove(start, end);
+            m_cursor = Math.min(m_cursor, start);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * updates chunkList
+     * updates the downloaded ranges
      * @param i_chunkList
      */
     void addChunkList(List<Chunk> i_chunkList){
@@ -75,8 +137,7 @@ public class DownloadableMetadata implements Serializable {
         try {
             for (Chunk i : i_chunkList) {
                 if (i.getData() != null) {
-                    int position = chunkOffsetToPosition(i.getOffset());
-                    m_chunkMap[position] = 1;
+                    m_doneRanges.add(i.getOffset(), i.getOffset() + i.getSize_in_bytes());
                 }
             }
         } finally {
@@ -84,16 +145,6 @@ public class DownloadableMetadata implements Serializable {
         }
     }
 
-    /**
-     * @param offset
-     * @return chunk's offset position
-
-     */
-    private int chunkOffsetToPosition(long offset) {
-        int position = (int)(offset / m_chunkSize);
-        return position;
-    }
-
     /**
      * @return filename
      */
@@ -116,12 +167,7 @@ public class DownloadableMetadata implements Serializable {
     boolean isCompleted() {
         lock.lock();
         try {
-            for (byte i : m_chunkMap) {
-                if (i == 0) {
-                    return false;
-                }
-            }
-            return true;
+            return m_doneRanges.covered() >= m_fileSize;
         } finally {
             lock.unlock();
         }
@@ -134,78 +180,61 @@ public class DownloadableMetadata implements Serializable {
 
     /**
      * use ResetPoint() to start over.
-     * @return Range of the next missing range, returns null when reached end, does not mean all ranges arrived.
+     * @return Range of the next missing range, at most one partition long.
+     * returns null when reached end, does not mean all ranges arrived.
      */
     Range getMissingRange() {
+        return getMissingRange(getPartitionBytes());
+    }
+
+    /**
+     * @param maxLength
+     * @return Range of the next missing range, ending at the next multiple of maxLength at the latest,
+     * or null when reached end
+     */
+    Range getMissingRange(long maxLength) {
         lock.lock();
         try {
-            //return null if reached end of map
-            if (m_point >= m_chunkMap.length - 1) {
+            long start = m_doneRanges.nextMissing(m_cursor);
+            //return null if reached end of file
+            if (start >= m_fileSize) {
+                m_cursor = m_fileSize;
                 return null;
             }
-
-            int start = m_point;
-            int end = start;
-            // get start to the next empty space
-            for (; start < m_chunkMap.length; start++) {
-                if (m_chunkMap[start] == 0) {
-                    end = start;
-                    break;
-                } else if (start == m_chunkMap.length - 1) {
-                    m_point = m_chunkMap.length;
-                    return null;
-                }
-            }
-            //get end to start + PARTION_SIZE or till end of space
-            for (int i = 1; i < PARTITION_SIZE && i + start < m_chunkMap.length; i++) {
-                if (m_chunkMap[start + i] == 1) {
-                    break;
-                }
-                end++;
-            }
-            m_point = end;
-            long rangeStart = positionToStartOffset(start);
-            long rangeEnd = positionToEndOffset(end);
-            m_point++;
-            return new Range(rangeStart, rangeEnd);
+            long end = m_doneRanges.gapEnd(start, Math.min(m_fileSize, (start / maxLength + 1) * maxLength));
+            m_cursor = end;
+            return new Range(start, end - 1);
         } finally {
             lock.unlock();
         }
     }
 
     /**
-     * translates position in chunk map to bytes offset in range
-     * @param pos
-     * @return start position in range
+     * @return bytes per partition until the RangeScheduler has sampled the throughput: PARTITION_SIZE chunks, rounded
+     * up to whole hash blocks so that partitions line up with blocks and each block is hashed in order as one
+     * connection streams it
      */
-    private long positionToEndOffset(int pos) {
-        long ans = positionToStartOffset(pos);
-        if(pos == m_chunkMap.length - 1){
-            long remainder = m_fileSize % m_chunkSize;
-            return ans + remainder - 1;
+    long getPartitionBytes() {
+        long partition = (long) PARTITION_SIZE * m_chunkSize;
+        int blockSize = getBlockHashes().getBlockSize();
+        if (blockSize > 0) {
+            partition = (partition + blockSize - 1) / blockSize * blockSize;
         }
-
-        return ans + m_chunkSize - 1;
-
+        return partition;
     }
 
     /**
      * resets pointer
      */
     void ResetPoint(){
-        m_point = 0;
-    }
-
-    /**
-     * moves pointer to the start of a chunk
-     * @param pos
-     * @return
-     */
-    private long positionToStartOffset(int pos) {
-        return (long)pos * m_chunkSize;
+        lock.lock();
+        try {
+            m_cursor = 0;
+        } finally {
+            lock.unlock();
+        }
     }
 
-    //unused
     String getUrl() {
         return url;
     }
@@ -218,22 +247,75 @@ public class DownloadableMetadata implements Serializable {
         return m_fileSize;
     }
 
-    //unused
     public long getChunkSize() {
         return m_chunkSize;
     }
 
     /**
-     * returns completed chunks
+     * returns completed percentage
      * @return
      */
     public int getDone(){
-        int count = 0;
-        for (byte i: m_chunkMap) {
-            count += i;
+        lock.lock();
+        try {
+            lastDoneReturned = m_fileSize == 0 ? 100 : (int)(m_doneRanges.covered() * 100 / m_fileSize);
+            return lastDoneReturned;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return what the server said about the file when the download started, or null if unknown
+     */
+    ServerTraits getTraits() {
+        return m_traits;
+    }
+
+    void setTraits(ServerTraits traits) {
+        m_traits = traits;
+    }
+
+    /**
+     * @return the hashes of the file's blocks, created on first use
+     */
+    synchronized BlockHashes getBlockHashes() {
+        if (m_blockHashes == null) {
+            m_blockHashes = new BlockHashes(filename, m_fileSize, BlockHashes.blockSizeFor(m_fileSize, BlockHashes.DEFAULT_BLOCK_SIZE));
+        }
+        return m_blockHashes;
+    }
+
+    /**
+     * callers must hold lock while reading the returned set
+     * @return downloaded ranges
+     */
+    RangeSet getDoneRanges() {
+        return m_doneRanges;
+    }
+
+    /**
+     * @return number of disjoint downloaded ranges
+     */
+    int getRangeCount() {
+        lock.lock();
+        try {
+            return m_doneRanges.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of downloaded bytes
+     */
+    long getDoneBytes() {
+        lock.lock();
+        try {
+            return m_doneRanges.covered();
+        } finally {
+            lock.unlock();
         }
-        lastDoneReturned = (int)(count * 100 / (double)m_chunkMap.length);
-        return lastDoneReturned;
     }
 
 }
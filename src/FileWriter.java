@@ -1,27 +1,59 @@
 import java.io.*;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.LinkedList;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class takes chunks from the queue, writes them to disk and updates the file's metadata.
  *
  * NOTE: make sure that the file interface you choose writes every update to the file's content or metadata
  *       synchronously to the underlying storage device.
+ *       In SYNC mode every write is synchronous ("rws"). In GROUP mode the drained batch is written
+ *       with plain writes and made durable by a single force() per checkpoint, before the journal
+ *       records describing it are appended, so a crash never leaves metadata pointing at lost data.
+ *
+ * The writer either runs on its own thread (run()), or is scheduled on an executor shared by many downloads
+ * (start()), in which case it takes no thread while it waits for the next flush. Either way it flushes every
+ * FLUSH_INTERVAL ms, or as soon as the ChunkQueue holds a batch worth writing.
+ * After every flush it reports the bytes done to the download's ProgressTracker.
  */
 public class FileWriter implements Runnable {
+    static final DurabilityMode DURABILITY_MODE = DurabilityMode.fromProperty(System.getProperty("idc.durability"));
+    static final long FLUSH_INTERVAL = 500;
+    private static final Metrics METRICS = Metrics.get();
 
-    private final BlockingQueue<Chunk> chunkQueue;
+    private final ChunkQueue chunkQueue;
     private DownloadableMetadata downloadableMetadata;
-    private RandomAccessFile data;
-    private ObjectOutputStream metadataStream;
-    private ObjectOutputStream metadataBakStream;
+    private OutputFile data;
+    private final ArrayList<Chunk> sortedChunks = new ArrayList<>();
+    private MetadataJournal journal;
+    private BlockHashes hashes;
+    private CompletableFuture<Void> hashing = CompletableFuture.completedFuture(null);
     private long fileSize;
-    private int downloaded = -1;
+    private final ProgressTracker progress;
+    private final LinkedList<Chunk> tempList = new LinkedList<>();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile ScheduledFuture<?> scheduled;
+    private volatile IOException failure;
+
+    FileWriter(DownloadableMetadata downloadableMetadata, ChunkQueue chunkQueue) {
+        this(downloadableMetadata, chunkQueue, new ProgressTracker(downloadableMetadata.getFilename()));
+    }
 
-    FileWriter(DownloadableMetadata downloadableMetadata, BlockingQueue<Chunk> chunkQueue) {
+    /**
+     * @param downloadableMetadata
+     * @param chunkQueue
+     * @param progress updated after every checkpoint, and receives the writer's messages
+     */
+    FileWriter(DownloadableMetadata downloadableMetadata, ChunkQueue chunkQueue, ProgressTracker progress) {
         this.chunkQueue = chunkQueue;
         this.downloadableMetadata = downloadableMetadata;
+        this.progress = progress;
         fileSize = downloadableMetadata.getFilesize();
     }
 
@@ -30,83 +62,195 @@ public class FileWriter implements Runnable {
      * @throws IOException
      */
     private void writeChunks() throws IOException {
-        LinkedList<Chunk> tempList = new LinkedList<>();
-        data = new RandomAccessFile(downloadableMetadata.getFilename(), "rws");
-        metadataStream = new ObjectOutputStream(new FileOutputStream(downloadableMetadata.getMetadataFilename()));
-        metadataBakStream = new ObjectOutputStream( new FileOutputStream(downloadableMetadata.getMetadataFilename() + ".bak"));
-
+        open();
         boolean endMarkerNotSeen = true;
         while(endMarkerNotSeen){
             try{
-                Thread.sleep(500);
+                chunkQueue.awaitFlush(FLUSH_INTERVAL);
             }
             catch (InterruptedException e){
 
             }
-            int numOfElements = chunkQueue.drainTo(tempList);
-            endMarkerNotSeen = !checkIfDone(tempList, numOfElements);
-            updateFile(tempList);
+            endMarkerNotSeen = !flush();
+        }
+        closeStreams();
+    }
+
+    /**
+     * opens the file and the metadata journal
+     * @throws IOException
+     */
+    void open() throws IOException {
+        data = new OutputFile(downloadableMetadata.getFilename(), fileSize, DURABILITY_MODE, OutputFile.OUTPUT_MODE);
+        journal = MetadataJournal.open(downloadableMetadata);
+        hashes = downloadableMetadata.getBlockHashes();
+        int unhashed = hashes.rehashResumed(downloadableMetadata);
+        if (unhashed > 0) {
+            progress.message("Hashing " + unhashed + " blocks written before the restart.");
+        }
+        progress.start(fileSize, downloadableMetadata.getDoneBytes());
+    }
+
+    /**
+     * drains the queue once, writes what it got and checkpoints the metadata
+     * @return true if the end marker was seen
+     * @throws IOException
+     */
+    boolean flush() throws IOException {
+        int numOfElements = chunkQueue.drainTo(tempList);
+        boolean done = checkIfDone(tempList, numOfElements);
+        try {
+            long start = System.nanoTime();
+            METRICS.drained(numOfElements, updateFile(tempList));
+            long written = System.nanoTime();
+            boolean forced = forceFile(tempList);
+            long synced = System.nanoTime();
+            hashing.join();
             updateMetadata(tempList);
-            int tempDone;
-            if((tempDone = downloadableMetadata.getDone()) != downloaded) {
-                downloaded = tempDone;
-                System.out.println("Downloaded: " + downloaded + "%");
+            if (numOfElements > 0) {
+                METRICS.written(written - start);
+                if (forced) {
+                    METRICS.synced(synced - written);
+                }
+                METRICS.checkpointed(System.nanoTime() - synced);
             }
+        } finally {
+            hashing.join(); //the hashers may still read the buffers if the write failed
+            releaseChunks(tempList);
             tempList.clear();
         }
-        closeStreams();
+        progress.update(downloadableMetadata.getDoneBytes());
+        return done;
+    }
+
+    /**
+     * runs the writer on a shared executor, flushing every FLUSH_INTERVAL ms, and whenever the queue wakes it,
+     * until the end marker arrives
+     * @param executor
+     */
+    void start(ScheduledExecutorService executor) {
+        chunkQueue.setWakeup(() -> {
+            if (finished.getCount() > 0 && !executor.isShutdown()) {
+                executor.execute(this::tick);
+            }
+        });
+        scheduled = executor.scheduleWithFixedDelay(this::tick, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void tick() {
+        if (finished.getCount() == 0) {
+            return;
+        }
+        try {
+            if (data == null) {
+                open();
+            }
+            if (flush()) {
+                closeStreams();
+                finish();
+            }
+        } catch (IOException e) {
+            failure = e;
+            chunkQueue.fail(e);
+            progress.message("Failed to write " + downloadableMetadata.getFilename() + ": " + e.getMessage());
+            finish();
+        }
+    }
+
+    /**
+     * for a writer run by start(): writes and checkpoints everything queued so far on the calling thread, so once
+     * the getters stopped the metadata holds every range they delivered. A write error is kept for getFailure().
+     */
+    void drain() {
+        tick();
+    }
+
+    private void finish() {
+        finished.countDown();
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+    }
+
+    /**
+     * waits until the writer saw the end marker or failed
+     * @throws InterruptedException
+     */
+    void awaitFinished() throws InterruptedException {
+        finished.await();
+    }
+
+    /**
+     * @return the error that stopped the writer, or null
+     */
+    IOException getFailure() {
+        return failure;
     }
 
     /**
      * closes streams
      * @throws IOException
      */
-    private void closeStreams() throws IOException{
+    void closeStreams() throws IOException{
         data.close();
-        metadataStream.close();
-        metadataBakStream.close();
+        journal.close();
     }
 
     /**
-     * updates metadata
+     * updates metadata and appends the newly completed ranges and block hashes to the journal
      * @param i_list
      * @throws IOException
      */
     private void updateMetadata(LinkedList<Chunk> i_list) throws IOException{
         downloadableMetadata.addChunkList(i_list);
-        safeWriteWithBackup(downloadableMetadata);
+        hashes.complete(downloadableMetadata);
+        journal.append(i_list);
     }
 
     /**
-     * Writes the metadata in a safe way
-     * @param downloadableMetadata
+     * updates file: sorts the batch by offset so adjacent chunks from interleaved connections
+     * are written as contiguous extents, and starts hashing it while it is written
+     * @param i_list
+     * @return number of bytes written
      * @throws IOException
-     * @throws NoSuchAlgorithmException
      */
-    private void safeWriteWithBackup(DownloadableMetadata downloadableMetadata) throws IOException {
-        try (ObjectOutputStream writer = new ObjectOutputStream(new FileOutputStream(downloadableMetadata.getMetadataFilename()))) {
-            writer.writeObject(downloadableMetadata);
-            writer.flush();
-            writer.close();
-        }
-        try (ObjectOutputStream writer = new ObjectOutputStream(new FileOutputStream(downloadableMetadata.getMetadataFilename() + ".bak"))) {
-            writer.writeObject(downloadableMetadata);
-            writer.flush();
-            writer.close();
+    private long updateFile(LinkedList<Chunk> i_list) throws IOException{
+        long bytes = 0;
+        sortedChunks.clear();
+        for (Chunk i: i_list) {
+            if(i.getData() != null) {
+                sortedChunks.add(i);
+                bytes += i.getSize_in_bytes();
+            }
         }
+        sortedChunks.sort(Comparator.comparingLong(Chunk::getOffset));
+        hashing = hashes.update(sortedChunks);
+        data.write(sortedChunks);
+        sortedChunks.clear();
+        return bytes;
     }
 
     /**
-     * updates file
+     * makes the batch durable with one force() in GROUP mode, SYNC mode already wrote it synchronously
      * @param i_list
+     * @return true if it forced the file
      * @throws IOException
      */
-    private void updateFile(LinkedList<Chunk> i_list) throws IOException{
+    private boolean forceFile(LinkedList<Chunk> i_list) throws IOException {
+        if (DURABILITY_MODE == DurabilityMode.GROUP && !i_list.isEmpty()) {
+            data.force();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * returns the written chunks' buffers to their pool
+     * @param i_list
+     */
+    private void releaseChunks(LinkedList<Chunk> i_list) {
         for (Chunk i: i_list) {
-            if(i.getData() != null) {
-                data.seek(i.getOffset());
-                data.write(i.getData(), 0, i.getSize_in_bytes());
-            }
+            i.release();
         }
     }
 
@@ -129,8 +273,29 @@ public class FileWriter implements Runnable {
         try {
             this.writeChunks();
         } catch (IOException e) {
-            e.printStackTrace();
-            //TODO
+            failure = e;
+            chunkQueue.fail(e);
+            progress.message("Failed to write " + downloadableMetadata.getFilename() + ": " + e.getMessage());
+        } finally {
+            finished.countDown();
+        }
+    }
+
+    /**
+     * selects when written data reaches the storage device, set with -Didc.durability=sync|group
+     */
+    enum DurabilityMode {
+        SYNC("rws"),
+        GROUP("rw");
+
+        final String fileMode;
+
+        DurabilityMode(String fileMode) {
+            this.fileMode = fileMode;
+        }
+
+        static DurabilityMode fromProperty(String value) {
+            return value == null ? GROUP : DurabilityMode.valueOf(value.trim().toUpperCase());
         }
     }
 }
@@ -1,59 +1,304 @@
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.concurrent.BlockingQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.net.*;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.time.Duration;
 
 /**
- * A runnable class which downloads a given url.
- * It reads CHUNK_SIZE at a time and writs it into a BlockingQueue.
+ * Downloads a range of a given url, for a RangeScheduler worker.
+ * It reads a chunk at a time and writs it into a ChunkQueue. The bulk read path starts at CHUNK_SIZE per read and
+ * doubles up to the largest pool segment while tokens arrive without waiting, and halves again when a read's tokens
+ * take longer than TIGHT_WAIT, so fast links are read in large units and a tight rate limit is paced in small ones.
+ * Each read goes into a pool buffer of the size class that fits it, so small reads do not hold large segments.
  * It supports downloading a range of data, and limiting the download rate using a token bucket.
+ * When the ServerTraits of the file are known, ranges are requested with If-Range so a changed file is detected,
+ * and from a server without range support the whole file is requested and the part before the range is skipped.
  */
-public class HTTPRangeGetter implements Runnable {
+public class HTTPRangeGetter {
     static final int CHUNK_SIZE = 4096;
-    private static final int CONNECT_TIMEOUT = 500;
-    private static final int READ_TIMEOUT = 2000;
+    static final int MAX_READ_SIZE = Integer.getInteger("idc.maxReadSize", 64 * 1024);
+    private static final long TIGHT_WAIT = 10_000_000;
+    static final ReadMode READ_MODE = ReadMode.fromProperty(System.getProperty("idc.readMode"));
+    static final HttpEngine HTTP_ENGINE = HttpEngine.fromProperty(System.getProperty("idc.http"));
+    private static final int MAX_ATTEMPTS = 5;
+    private static final int RANGE_NOT_SATISFIABLE = 416;
+    private static final long DRAIN_LIMIT = 64 * 1024;
+    private static final Metrics METRICS = Metrics.get();
     private final String url;
-    private final Range range;
-    private final BlockingQueue<Chunk> outQueue;
+    private final ActiveRange range;
+    private final ChunkQueue outQueue;
+    private final ChunkPool chunkPool;
+    private final ConnectionPool connectionPool;
+    private final ServerTraits traits;
     private TokenBucket tokenBucket;
+    private int readSize = CHUNK_SIZE;
 
-    HTTPRangeGetter(String url, Range range, BlockingQueue<Chunk> outQueue, TokenBucket tokenBucket) {
+    HTTPRangeGetter(String url, ActiveRange range, ChunkQueue outQueue, TokenBucket tokenBucket, ChunkPool chunkPool, ConnectionPool connectionPool) {
+        this(url, range, outQueue, tokenBucket, chunkPool, connectionPool, null);
+    }
+
+    /**
+     * @param url
+     * @param range
+     * @param outQueue
+     * @param tokenBucket
+     * @param chunkPool
+     * @param connectionPool
+     * @param traits what the probe learned about the file, or null
+     */
+    HTTPRangeGetter(String url, ActiveRange range, ChunkQueue outQueue, TokenBucket tokenBucket, ChunkPool chunkPool,
+                    ConnectionPool connectionPool, ServerTraits traits) {
         this.url = url;
+        this.traits = traits;
         this.range = range;
         this.outQueue = outQueue;
         this.tokenBucket = tokenBucket;
+        this.chunkPool = chunkPool;
+        this.connectionPool = connectionPool;
     }
 
     /**
-     * It reads CHUNK_SIZE at a time and writs it into a BlockingQueue.
+     * It reads a chunk at a time and writs it into a ChunkQueue.
      * It supports downloading a range of data, and limiting the download rate using a token bucket.
+     * Stops early if the range was split while downloading.
      * @throws IOException
      * @throws InterruptedException
      */
-    private void downloadRange() throws IOException, InterruptedException {
+    void downloadRange() throws IOException, InterruptedException {
+        if (HTTP_ENGINE == HttpEngine.POOLED && isDirect()) {
+            downloadPooled();
+        } else if (HTTP_ENGINE == HttpEngine.H2) {
+            downloadWithHttpClient();
+        } else {
+            downloadWithUrlConnection();
+        }
+    }
+
+    /**
+     * @return true if the URL is reached without a proxy (http.proxyHost, https.proxyHost or a ProxySelector),
+     * which the pooled connections cannot go through
+     */
+    private boolean isDirect() {
+        try {
+            for (Proxy i : ProxySelector.getDefault().select(new URI(this.url))) {
+                if (i.type() != Proxy.Type.DIRECT) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return true; //the request reports the URL
+        }
+    }
+
+    /**
+     * downloads the range over a keep-alive connection from the connection pool, following redirects, or over
+     * HttpURLConnection if the response is one the pooled connection cannot read, such as a chunked one
+     * @throws IOException
+     */
+    private void downloadPooled() throws IOException {
+        URL target = new URL(this.url);
+        for (int attempt = 1; ; attempt++) {
+            Map<String, String> headers = requestHeaders();
+            HttpConnection connection = connectionPool.acquire(target);
+            HttpConnection.Response response;
+            try {
+                response = connection.get(target, headers);
+            } catch (HttpConnection.UnsupportedResponseException e) {
+                connectionPool.discard(connection);
+                downloadWithUrlConnection();
+                return;
+            } catch (IOException e) {
+                connectionPool.discard(connection);
+                if (connection.getRequests() > 1 && attempt < MAX_ATTEMPTS) {
+                    METRICS.retry();
+                    continue; //the server closed an idle keep-alive connection, retry on another one
+                }
+                throw e;
+            }
+
+            boolean completed = false;
+            try {
+                if (response.code / 100 == 3 && response.header("Location") != null && attempt < MAX_ATTEMPTS) {
+                    target = new URL(target, response.header("Location"));
+                    completed = true;
+                    continue;
+                }
+                checkResponse(response.code);
+                skipToRange(response);
+                METRICS.tokenWait(tokenBucket.take(readSize)); //take the first read's tokens to initialize download
+                if (READ_MODE == ReadMode.CHANNEL) {
+                    downloadFromChannel(response);
+                } else {
+                    downloadFromStream(Channels.newInputStream(response));
+                }
+                completed = true;
+                return;
+            } finally {
+                //a range cut short by a split leaves part of the body unread, drain it if it is small
+                response.finish(completed ? DRAIN_LIMIT : 0);
+                connectionPool.release(connection);
+            }
+        }
+    }
+
+    /**
+     * downloads the range as one stream of the shared HttpClient, which multiplexes the ranges of an origin over
+     * one HTTP/2 connection, and falls back to HTTP/1.1 connections when the origin does not negotiate HTTP/2
+     * @throws IOException
+     */
+    private void downloadWithHttpClient() throws IOException {
+        HttpRequest request;
+        try {
+            HttpRequest.Builder builder = HttpRequest.newBuilder(new URI(this.url))
+                    .timeout(Duration.ofMillis(ConnectionPool.READ_TIMEOUT))
+                    .GET();
+            for (Map.Entry<String, String> i : requestHeaders().entrySet()) {
+                builder.header(i.getKey(), i.getValue());
+            }
+            request = builder.build();
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            throw new IOException("Invalid URL " + this.url, e);
+        }
+        BodyChannel body = new BodyChannel(ConnectionPool.READ_TIMEOUT);
+        SharedHttpClient.CLIENT.sendAsync(request, body::handle).whenComplete((response, error) -> {
+            if (error != null) {
+                body.failed(error);
+            }
+        });
+        try {
+            checkResponse(body.awaitStatus());
+            skipToRange(body);
+            METRICS.tokenWait(tokenBucket.take(readSize)); //take the first read's tokens to initialize download
+            downloadFromChannel(body);
+        } finally {
+            body.close();
+        }
+    }
+
+    /**
+     * downloads the range over HttpURLConnection, with the ConnectionPool timeouts. The stream is closed but the
+     * connection is not disconnected after a clean read, so the JDK's keep-alive cache reuses the socket.
+     * @throws IOException
+     */
+    private void downloadWithUrlConnection() throws IOException {
         URL url = new URL(this.url);
         HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestProperty("Range", GetRange());
-        connection.connect();
-        //TODO what todo if fail (not code 206)
-        //System.out.println("Response Code: " + connection.getResponseCode());
-        //System.out.println("Content-Length: " + connection.getContentLengthLong());
-
-        InputStream inputStream = connection.getInputStream();
-        long size = 0; //the amount of bytes downloaded by the thread
+        connection.setConnectTimeout(ConnectionPool.CONNECT_TIMEOUT);
+        connection.setReadTimeout(ConnectionPool.READ_TIMEOUT);
+        for (Map.Entry<String, String> i : requestHeaders().entrySet()) {
+            connection.setRequestProperty(i.getKey(), i.getValue());
+        }
+        boolean completed = false;
+        try {
+            checkResponse(connection.getResponseCode());
+            try (InputStream inputStream = connection.getInputStream()) {
+                skipToRange(Channels.newChannel(inputStream));
+                METRICS.tokenWait(tokenBucket.take(readSize)); //take the first read's tokens to initialize download
+
+                if (READ_MODE == ReadMode.CHANNEL) {
+                    downloadFromChannel(Channels.newChannel(inputStream));
+                } else {
+                    downloadFromStream(inputStream);
+                }
+            }
+            completed = true;
+        } finally {
+            if (!completed) {
+                connection.disconnect(); //a failed or unexpected response is not left for reuse
+            }
+        }
+    }
+
+    /**
+     * legacy read path: fills every chunk with one stream.read() call per byte
+     * @param inputStream
+     */
+    private void downloadFromStream(InputStream inputStream) throws IOException {
         int val; //the number of bytes read per iteration
         byte[] tempChunkData = new byte[CHUNK_SIZE];
 
-        tokenBucket.take(CHUNK_SIZE); //take first CHUNK_SIZE tokens to initialize download
-
         while((val = readChunk(inputStream, tempChunkData)) != -1 ){
-            Chunk chunk = new Chunk(tempChunkData, range.getStart() + size, val);
-            size += val; //update size
-            outQueue.add(chunk); //add new chunk of data to outQueue
-            tokenBucket.take(CHUNK_SIZE); //take additional CHUNK_SIZE tokens to continue download
+            ByteBuffer buffer = chunkPool.lease(CHUNK_SIZE);
+            buffer.put(tempChunkData, 0, val).flip();
+            if (!offer(buffer, val)) {
+                break;
+            }
+            METRICS.tokenWait(tokenBucket.take(CHUNK_SIZE)); //take additional CHUNK_SIZE tokens to continue download
+        }
+    }
+
+    /**
+     * bulk read path: fills pooled direct buffers with as few channel reads as the socket allows
+     * @param channel
+     */
+    private void downloadFromChannel(ReadableByteChannel channel) throws IOException {
+        int val; //the number of bytes read per iteration
+        long waited = 0; //time the tokens of the current read took
+        ByteBuffer buffer = chunkPool.lease(readSize);
+
+        try {
+            while((val = readChunk(channel, buffer, readSize)) != -1 ){
+                ByteBuffer read = buffer;
+                buffer = null; //offer() hands it to outQueue or back to the pool
+                if (!offer(read, val)) {
+                    return;
+                }
+                tune(val, waited);
+                waited = tokenBucket.take(readSize); //take the next read's tokens to continue download
+                METRICS.tokenWait(waited);
+                buffer = chunkPool.lease(readSize);
+            }
+        } finally {
+            if (buffer != null) {
+                chunkPool.release(buffer); //end of stream, or the connection failed mid-chunk
+            }
         }
-        inputStream.close();
-        connection.disconnect();
+    }
+
+    /**
+     * adapts the read size to the last read
+     * @param read bytes the last read returned
+     * @param waited nanoseconds its tokens took
+     */
+    private void tune(int read, long waited) {
+        if (waited > TIGHT_WAIT) {
+            readSize = Math.max(CHUNK_SIZE, readSize / 2);
+        } else if (waited < TIGHT_WAIT / 4 && read == readSize) {
+            readSize = Math.max(CHUNK_SIZE, Math.min(chunkPool.getMaxSegmentSize(), readSize * 2));
+        }
+    }
+
+    /**
+     * adds the part of a read buffer that still belongs to the range to outQueue
+     * @param buffer flipped buffer holding val bytes read at the range's position
+     * @param val
+     * @return false if the range ended (it was split) and reading should stop
+     * @throws IOException if the writer failed, or if interrupted while the queue was full
+     */
+    private boolean offer(ByteBuffer buffer, int val) throws IOException {
+        long offset = range.getPosition();
+        int accepted = range.accept(val);
+        if (accepted == 0) {
+            chunkPool.release(buffer);
+            return false;
+        }
+        buffer.limit(accepted);
+        METRICS.received(accepted);
+        try {
+            outQueue.put(new Chunk(buffer, offset, accepted, chunkPool)); //blocks while the writer is behind
+        } catch (IOException e) {
+            chunkPool.release(buffer);
+            throw e;
+        }
+        return accepted == val;
     }
 
     /**
@@ -63,7 +308,7 @@ public class HTTPRangeGetter implements Runnable {
      * @return
      * @throws IOException
      */
-    private int readChunk(InputStream stream, byte[] data) throws IOException {
+    static int readChunk(InputStream stream, byte[] data) throws IOException {
         int count = 0;
         int val;
         for (; count < CHUNK_SIZE; count++) {
@@ -77,23 +322,144 @@ public class HTTPRangeGetter implements Runnable {
         return count;
     }
 
+    /**
+     * reads an entire chunk from channel into buffer, retrying short reads until the chunk is full or the stream ends.
+     * the buffer is flipped and ready to be read from when this returns.
+     * @param channel
+     * @param buffer
+     * @return number of bytes read, -1 on end of stream
+     * @throws IOException
+     */
+    static int readChunk(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        return readChunk(channel, buffer, buffer.capacity());
+    }
+
+    /**
+     * reads at most length bytes from channel into buffer, like readChunk(channel, buffer)
+     * @param channel
+     * @param buffer
+     * @param length
+     * @return number of bytes read, -1 on end of stream
+     * @throws IOException
+     */
+    static int readChunk(ReadableByteChannel channel, ByteBuffer buffer, int length) throws IOException {
+        buffer.clear().limit(Math.min(length, buffer.capacity()));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer.remaining() == 0 ? -1 : buffer.remaining();
+    }
+
     public static int getChunkSize(){
         return CHUNK_SIZE;
     }
 
 
     public String GetRange(){
-        return "bytes=" + range.getStart() + "-" + range.getEnd();
+        return "bytes=" + range.getPosition() + "-" + range.getEnd();
     }
-    @Override
 
-    public void run(){
+    /**
+     * @return true if the server does not serve ranges and the whole file has to be requested
+     */
+    private boolean singleStream() {
+        return traits != null && !traits.acceptRanges;
+    }
+
+    /**
+     * @return Range and If-Range, or no header at all for a server without range support
+     */
+    private Map<String, String> requestHeaders() {
+        Map<String, String> headers = new LinkedHashMap<>();
+        if (!singleStream()) {
+            headers.put("Range", GetRange());
+            if (traits != null && traits.validator() != null) {
+                headers.put("If-Range", traits.validator());
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * @param code response code
+     * @throws HttpStatusException if it is not 206 for a range, or 200 for a whole file
+     * @throws IOException if the file changed, which is recorded in the traits: a 200 for a range sent with
+     * If-Range, or a 416 from a server that checks the range before If-Range and finds the file shorter
+     */
+    private void checkResponse(int code) throws IOException {
+        int expected = singleStream() ? HttpURLConnection.HTTP_OK : HttpURLConnection.HTTP_PARTIAL;
+        if (code == expected) {
+            return;
+        }
+        boolean ifRange = !singleStream() && traits != null && traits.validator() != null;
+        if (ifRange && (code == HttpURLConnection.HTTP_OK || code == RANGE_NOT_SATISFIABLE)) {
+            traits.markChanged();
+            throw new IOException("The file changed on the server");
+        }
+        throw new HttpStatusException(code, "Unexpected response code " + code + " for " + GetRange());
+    }
+
+    /**
+     * reads past the part of a whole-file response that comes before the range
+     * @param channel
+     * @throws IOException
+     */
+    private void skipToRange(ReadableByteChannel channel) throws IOException {
+        long left = singleStream() ? range.getPosition() : 0;
+        if (left == 0) {
+            return;
+        }
+        ByteBuffer buffer = chunkPool.lease(chunkPool.getMaxSegmentSize());
         try {
-            this.downloadRange();
-        } catch (IOException | InterruptedException e) {
-            if(e instanceof IOException){
-                System.err.println("There was an error connecting to the server, please try again. Download failed");
+            while (left > 0) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), left));
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    throw new EOFException("The file ended " + left + " bytes before the range");
+                }
+                left -= read;
             }
+        } finally {
+            chunkPool.release(buffer);
+        }
+    }
+    /**
+     * the java.net.http client of the H2 engine, created on first use
+     */
+    private static class SharedHttpClient {
+        static final HttpClient CLIENT = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofMillis(ConnectionPool.CONNECT_TIMEOUT))
+                .build();
+    }
+
+    /**
+     * selects the HTTP client, set with -Didc.http=pooled|urlconnection|h2. POOLED falls back to URLCONNECTION
+     * behind a proxy and for chunked responses.
+     */
+    enum HttpEngine {
+        POOLED,
+        URLCONNECTION,
+        H2;
+
+        static HttpEngine fromProperty(String value) {
+            return value == null ? POOLED : HttpEngine.valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    /**
+     * selects how the response body is read, set with -Didc.readMode=stream|channel
+     */
+    enum ReadMode {
+        STREAM,
+        CHANNEL;
+
+        static ReadMode fromProperty(String value) {
+            return value == null ? CHANNEL : ReadMode.valueOf(value.trim().toUpperCase());
         }
     }
 }
@@ -0,0 +1,324 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A persistent HTTP/1.1 connection to one origin, used by ConnectionPool.
+ *
+ * It sends GET requests one after the other over the same socket and exposes every response body as a channel
+ * limited to its Content-Length, so a fully read response leaves the socket ready for the next request.
+ * It also keeps a running average of the rate at which bodies arrive, which the pool uses to retire slow sockets.
+ * It speaks to the origin directly and does not decode chunked bodies: a response it cannot read raises an
+ * UnsupportedResponseException, and callers use HttpURLConnection for it, as they do behind a proxy.
+ */
+class HttpConnection implements Closeable {
+    private static final int MAX_HEADER_LINE = 8192;
+    private static final double THROUGHPUT_WEIGHT = 0.3;
+
+    final String key;
+    private final Socket socket;
+    private final InputStream in;
+    private final ReadableByteChannel inChannel;
+    private final OutputStream out;
+    private int requests = 0;
+    private boolean reusable = true;
+    private long lastUsed;
+    private double throughput = 0; // bytes per second, exponentially weighted over responses
+
+    private HttpConnection(String key, Socket socket) throws IOException {
+        this.key = key;
+        this.socket = socket;
+        this.in = new BufferedInputStream(socket.getInputStream(), 1 << 16);
+        this.inChannel = Channels.newChannel(in);
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.lastUsed = System.nanoTime();
+    }
+
+    /**
+     * @param url
+     * @return the pool key of url's origin
+     */
+    static String keyOf(URL url) {
+        return url.getProtocol() + "://" + url.getHost() + ":" + portOf(url);
+    }
+
+    private static int portOf(URL url) {
+        return url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+    }
+
+    /**
+     * opens a new connection to url's origin
+     * @param url
+     * @param connectTimeout
+     * @param readTimeout
+     * @return connection
+     * @throws IOException
+     */
+    static HttpConnection open(URL url, int connectTimeout, int readTimeout) throws IOException {
+        String protocol = url.getProtocol();
+        if (!protocol.equals("http") && !protocol.equals("https")) {
+            throw new IOException("Unsupported protocol " + protocol);
+        }
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(url.getHost(), portOf(url)), connectTimeout);
+            socket.setSoTimeout(readTimeout);
+            if (protocol.equals("https")) {
+                SSLSocket ssl = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+                        .createSocket(socket, url.getHost(), portOf(url), true);
+                SSLParameters parameters = ssl.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                ssl.setSSLParameters(parameters);
+                ssl.startHandshake();
+                socket = ssl;
+            }
+            return new HttpConnection(keyOf(url), socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * sends a GET request and reads the response head
+     * @param url
+     * @param headers extra request headers
+     * @return response whose body must be read or finished before the next request
+     * @throws IOException
+     */
+    Response get(URL url, Map<String, String> headers) throws IOException {
+        requests++;
+        lastUsed = System.nanoTime();
+        String path = url.getFile().isEmpty() ? "/" : url.getFile();
+        StringBuilder request = new StringBuilder(256)
+                .append("GET ").append(path).append(" HTTP/1.1\r\n")
+                .append("Host: ").append(url.getHost());
+        if (url.getPort() != -1) {
+            request.append(':').append(url.getPort());
+        }
+        request.append("\r\nUser-Agent: IdcDm\r\nAccept-Encoding: identity\r\nConnection: keep-alive\r\n");
+        for (Map.Entry<String, String> i : headers.entrySet()) {
+            request.append(i.getKey()).append(": ").append(i.getValue()).append("\r\n");
+        }
+        request.append("\r\n");
+        out.write(request.toString().getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+
+        String statusLine = readLine();
+        if (statusLine == null || !statusLine.startsWith("HTTP/")) {
+            reusable = false;
+            throw new EOFException("Connection closed before response");
+        }
+        String[] status = statusLine.split(" ", 3);
+        int code;
+        try {
+            code = Integer.parseInt(status[1]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            reusable = false;
+            throw new IOException("Malformed status line: " + statusLine);
+        }
+        Map<String, String> responseHeaders = new HashMap<>();
+        String line;
+        while ((line = readLine()) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                responseHeaders.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+        }
+        if (line == null) {
+            reusable = false;
+            throw new EOFException("Connection closed inside response headers");
+        }
+
+        String connection = responseHeaders.getOrDefault("connection", "");
+        if (connection.equalsIgnoreCase("close") || (status[0].equals("HTTP/1.0") && !connection.equalsIgnoreCase("keep-alive"))) {
+            reusable = false;
+        }
+        if (responseHeaders.containsKey("transfer-encoding")) {
+            reusable = false;
+            throw new UnsupportedResponseException("Chunked responses are not supported");
+        }
+        String length = responseHeaders.get("content-length");
+        if (length == null) {
+            reusable = false;
+        }
+        long contentLength = Long.MAX_VALUE;
+        if (length != null) {
+            try {
+                contentLength = Long.parseLong(length);
+            } catch (NumberFormatException e) {
+                reusable = false;
+                throw new IOException("Malformed Content-Length: " + length);
+            }
+            if (contentLength < 0) {
+                reusable = false;
+                throw new IOException("Malformed Content-Length: " + length);
+            }
+        }
+        return new Response(code, responseHeaders, contentLength);
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = line.length();
+                return length > 0 && line.charAt(length - 1) == '\r' ? line.substring(0, length - 1) : line.toString();
+            }
+            if (line.length() >= MAX_HEADER_LINE) {
+                throw new IOException("Response header line too long");
+            }
+            line.append((char) c);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    /**
+     * @return number of requests sent on this connection
+     */
+    int getRequests() {
+        return requests;
+    }
+
+    /**
+     * @return false if the server closes the connection or a response was not fully read
+     */
+    boolean isReusable() {
+        return reusable && !socket.isClosed();
+    }
+
+    /**
+     * @return bytes per second at which response bodies arrived, averaged over responses
+     */
+    double getThroughput() {
+        return throughput;
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reusable = false;
+        socket.close();
+    }
+
+    /**
+     * A response head, and a body channel bounded by its Content-Length
+     */
+    class Response implements ReadableByteChannel {
+        final int code;
+        final Map<String, String> headers;
+        private long remaining;
+        private long bodyBytes = 0;
+        private long readNanos = 0;
+
+        private Response(int code, Map<String, String> headers, long contentLength) {
+            this.code = code;
+            this.headers = headers;
+            this.remaining = contentLength;
+        }
+
+        String header(String name) {
+            return headers.get(name.toLowerCase());
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int limit = dst.limit();
+            if (dst.remaining() > remaining) {
+                dst.limit(dst.position() + (int) remaining);
+            }
+            long started = System.nanoTime();
+            int read;
+            try {
+                read = inChannel.read(dst);
+            } catch (IOException e) {
+                reusable = false;
+                throw e;
+            } finally {
+                dst.limit(limit);
+            }
+            readNanos += System.nanoTime() - started;
+            if (read == -1) {
+                reusable = false;
+                if (remaining != Long.MAX_VALUE) {
+                    throw new EOFException("Connection closed with " + remaining + " body bytes left");
+                }
+                remaining = 0;
+                return -1;
+            }
+            remaining -= read;
+            bodyBytes += read;
+            return read;
+        }
+
+        /**
+         * reads and discards up to maxDrain unread body bytes so the connection can be reused
+         * @param maxDrain
+         * @return true if the whole body was consumed
+         */
+        boolean finish(long maxDrain) {
+            if (remaining > 0 && remaining <= maxDrain) {
+                try {
+                    ByteBuffer sink = ByteBuffer.allocate((int) Math.min(remaining, 1 << 16));
+                    while (remaining > 0) {
+                        sink.clear();
+                        if (read(sink) == -1) {
+                            break;
+                        }
+                    }
+                } catch (IOException e) {
+                    reusable = false;
+                }
+            }
+            if (remaining != 0) {
+                reusable = false;
+            }
+            if (bodyBytes > 0 && readNanos > 0) {
+                double sample = bodyBytes * 1e9 / readNanos;
+                throughput = throughput == 0 ? sample : THROUGHPUT_WEIGHT * sample + (1 - THROUGHPUT_WEIGHT) * throughput;
+            }
+            lastUsed = System.nanoTime();
+            return remaining == 0;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !socket.isClosed();
+        }
+
+        @Override
+        public void close() {
+            finish(0);
+        }
+    }
+
+    /**
+     * a well-formed response this connection cannot read, which HttpURLConnection can
+     */
+    static class UnsupportedResponseException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedResponseException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * A response whose status code is not the one a range request expects.
+ *
+ * Most 4xx codes say the request will not succeed by being sent again (the file is gone, access is denied),
+ * which isPermanent() tells apart from server errors, 408 and 429 that are worth retrying later.
+ */
+class HttpStatusException extends IOException {
+    private static final long serialVersionUID = 1L;
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    final int code;
+
+    /**
+     * @param code response code
+     * @param message
+     */
+    HttpStatusException(int code, String message) {
+        super(message);
+        this.code = code;
+    }
+
+    /**
+     * @return true if the same request to the same server will fail again
+     */
+    boolean isPermanent() {
+        return code >= 400 && code < 500 && code != HttpURLConnection.HTTP_CLIENT_TIMEOUT && code != TOO_MANY_REQUESTS;
+    }
+}
@@ -1,16 +1,18 @@
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.concurrent.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
 
 public class IdcDm {
 
-    static long filesize;
+    static final int AUTO_MAX_CONNECTIONS = 32;
 
     /**
      * Receive arguments from the command-line, provide some feedback and start the download.
@@ -18,14 +20,23 @@ public class IdcDm {
      * @param args command-line arguments
      */
     public static void main(String[] args) {
-        int numberOfWorkers = 1;
+        int minWorkers = 1;
+        int maxWorkers = 1;
         Long maxBytesPerSecond = null;
 
         if (args.length < 1 || args.length > 3) {
-            System.err.printf("usage:\n\tjava IdcDm URL [MAX-CONCURRENT-CONNECTIONS] [MAX-DOWNLOAD-LIMIT]\n");
+            System.err.printf("usage:\n\tjava IdcDm URL[,MIRROR-URL...]|@LIST-FILE|@- [MAX-CONCURRENT-CONNECTIONS|MIN-MAX|auto] [MAX-DOWNLOAD-LIMIT]\n");
             System.exit(1);
         } else if (args.length >= 2) {
-            numberOfWorkers = Integer.parseInt(args[1]);
+            String connections = args[1];
+            if (connections.equalsIgnoreCase("auto")) {
+                maxWorkers = AUTO_MAX_CONNECTIONS;
+            } else if (connections.contains("-")) {
+                minWorkers = Integer.parseInt(connections.substring(0, connections.indexOf('-')));
+                maxWorkers = Integer.parseInt(connections.substring(connections.indexOf('-') + 1));
+            } else {
+                minWorkers = maxWorkers = Integer.parseInt(connections);
+            }
             if (args.length == 3)
                 maxBytesPerSecond = Long.parseLong(args[2]);
         }
@@ -33,197 +44,109 @@ public class IdcDm {
         String url = args[0];
 
         System.err.printf("Downloading");
-        if (numberOfWorkers > 1)
-            System.err.printf(" using %d connections", numberOfWorkers);
+        if (url.startsWith("@"))
+            System.err.printf(" the files listed in %s", url.equals("@-") ? "standard input" : url.substring(1));
+        if (minWorkers != maxWorkers)
+            System.err.printf(" using %d-%d connections (adaptive)", minWorkers, maxWorkers);
+        else if (maxWorkers > 1)
+            System.err.printf(" using %d connections", maxWorkers);
         if (maxBytesPerSecond != null)
             System.err.printf(" limited to %d Bps", maxBytesPerSecond);
         System.err.printf("...\n");
 
-        DownloadURL(url, numberOfWorkers, maxBytesPerSecond);
+        DownloadEngine engine = new DownloadEngine(minWorkers, maxWorkers, maxBytesPerSecond);
+        int failed;
+        if (url.startsWith("@")) {
+            List<String> lines = readList(url.substring(1));
+            if (lines == null) {
+                engine.close();
+                System.exit(1);
+            }
+            failed = runBatch(engine, lines);
+        } else {
+            failed = await(engine.submit(url, 1, new ConsoleProgress("")), "") ? 0 : 1;
+        }
+        engine.close();
+        System.exit(failed > 0 ? 1 : 0);
     }
 
     /**
-     * Initiate the file's metadata, and iterate over missing ranges. For each:
-     * 1. Setup the Queue, TokenBucket, DownloadableMetadata, FileWriter, RateLimiter, and a pool of HTTPRangeGetters
-     * 2. Join the HTTPRangeGetters, send finish marker to the Queue and terminate the TokenBucket
-     * 3. Join the FileWriter and RateLimiter
-     *
-     * Finally, print "Download succeeded/failed" and delete the metadata as needed.
-     *
-     * @param url URL to download
-     * @param numberOfWorkers number of concurrent connections
-     * @param maxBytesPerSecond limit on download bytes-per-second
+     * downloads every file of a list, up to DownloadManager.MAX_CONCURRENT_DOWNLOADS at once.
+     * each line is "URL[,MIRROR-URL...] [WEIGHT]", blank lines and lines starting with # are skipped
+     * @param engine
+     * @param lines
+     * @return number of downloads that failed
      */
-    private static void DownloadURL(String url, int numberOfWorkers, Long maxBytesPerSecond) {
-        try {
-            filesize = getContentLength(url);
-        }
-        catch (IOException e){
-            System.err.println("Failed to connect.");
-        }
-        TokenBucket tokenBucket;
-        RateLimiter rateLimiter;
-        DownloadableMetadata metadata;
-
-        //init blockingQueue
-        BlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
-
-        //init tokenBucket
-        tokenBucket = initTokenBucket(maxBytesPerSecond);
-
-        //init metadata
-        metadata = initMetaData(url);
-
-        //init rateLimiter
-        rateLimiter = new RateLimiter(tokenBucket, maxBytesPerSecond);
-        //execute ratelimiter
-         Thread rateLimiterThread =  new Thread(rateLimiter);
-         rateLimiterThread.start();
-
-        //todo is this the right place for this?
-        //init fileWriter
-        FileWriter fileWriter = new FileWriter(metadata, queue);
-        //execute
-        Thread fileWriterThread = new Thread(fileWriter);
-        fileWriterThread.start();
-
-        int temp = (int)(filesize / (HTTPRangeGetter.CHUNK_SIZE * metadata.PARTITION_SIZE));
-        int realNumberOfWorkers = Math.min(temp , numberOfWorkers);
-        realNumberOfWorkers = realNumberOfWorkers == 0 ? 1 : realNumberOfWorkers;
-
-        int a = Integer.MAX_VALUE;
-        while (!metadata.isCompleted()) {
-            try {
-                callHTTPGetters(url, queue, tokenBucket, metadata, realNumberOfWorkers);
-                Thread.sleep(1000);
+    static int runBatch(DownloadEngine engine, List<String> lines) {
+        List<String> urls = new ArrayList<>();
+        List<Double> weights = new ArrayList<>();
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
             }
-            catch (InterruptedException e){
-                System.err.println("Failed to download.");
+            String[] fields = line.split("\\s+");
+            double weight = fields.length > 1 ? Double.parseDouble(fields[1]) : 1;
+            if (weight <= 0) {
+                throw new IllegalArgumentException("Weight must be positive: " + line);
             }
+            urls.add(fields[0]);
+            weights.add(weight);
         }
 
-        queue.add(new Chunk(null, -1,0));
-        try {
-            fileWriterThread.join();
-            rateLimiterThread.interrupt();
-        }
-        catch(InterruptedException e){
-            System.err.println("Download interrupted.");
+        List<DownloadHandle> handles = new ArrayList<>();
+        int failed = 0;
+        for (int i = 0; i < urls.size(); i++) {
+            String label = "[" + DownloadableMetadata.getName(urls.get(i).split(",")[0].trim()) + "] ";
+            try {
+                handles.add(engine.submit(urls.get(i), weights.get(i), new ConsoleProgress(label)));
+            } catch (IllegalStateException e) {
+                System.out.println(label + "Download failed: " + e.getMessage());
+                failed++;
+            }
         }
-        tokenBucket.terminate();
-
-        removeMetadata(metadata.getFilename() + ".metadata");
-        removeMetadata(metadata.getFilename() + ".metadata.bak");
-        System.out.println("Download succeeded");
-    }
-
-    /**
-     * Removes existing metadata
-     * @param i_filename
-     */
-    private static void removeMetadata(String i_filename) {
-        File metadata = new File(i_filename);
-        metadata.delete();
-    }
-
-    /**
-     * Creates new HTTPGetters
-     * @param url
-     * @param queue
-     * @param tokenBucket
-     * @param metadata
-     * @param numberOfWorkers
-     * @throws InterruptedException
-     */
-    private static void callHTTPGetters(String url, BlockingQueue<Chunk> queue, TokenBucket tokenBucket , DownloadableMetadata metadata, int numberOfWorkers) throws InterruptedException {
-        ExecutorService executor = Executors.newFixedThreadPool(numberOfWorkers);
-        Range nextRange;
-        while((nextRange = metadata.getMissingRange()) != null){
-            executor.execute(new HTTPRangeGetter(url, nextRange, queue, tokenBucket));
+        for (DownloadHandle i : handles) {
+            if (!await(i, "[" + i.getName() + "] ")) {
+                failed++;
+            }
         }
-        metadata.ResetPoint();
-        executor.shutdown();
-        executor.awaitTermination(300, TimeUnit.SECONDS);
-
-    }
-
-    /**
-     * @param i_url
-     * @return length of file
-     * @throws IOException
-     */
-    private static long getContentLength(String i_url) throws IOException{
-        URL url = new URL(i_url);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.connect();
-        long contentLength = connection.getContentLength();
-        connection.disconnect();
-        return contentLength;
+        System.err.printf("Batch: %d succeeded, %d failed\n", urls.size() - failed, failed);
+        return failed;
     }
 
     /**
-     * creates new metadata
-     * @param url
-     * @return the new metadata
+     * waits for a download and prints how it ended
+     * @param handle
+     * @param label printed before the result
+     * @return true if the download succeeded
      */
-    private static DownloadableMetadata initMetaData(String url) {
-        String metadataName = DownloadableMetadata.getMetadataName(DownloadableMetadata.getName(url));
-        if(Files.exists(Paths.get(metadataName))){
-             DownloadableMetadata readMeta = tryLoadMetadata(metadataName);
-             if(readMeta != null){
-                 return readMeta;
-             }
-             readMeta = tryLoadMetadata(metadataName + ".bak");
-             if(readMeta != null){
-                 return readMeta;
-             }
-
-             return new DownloadableMetadata(url, filesize, HTTPRangeGetter.getChunkSize());
-        }
-        else{
-            return new DownloadableMetadata(url, filesize, HTTPRangeGetter.getChunkSize());
+    private static boolean await(DownloadHandle handle, String label) {
+        try {
+            handle.getFuture().join();
+            System.out.println(label + "Download succeeded");
+            return true;
+        } catch (CompletionException | CancellationException e) {
+            System.out.println(label + "Download failed");
+            return false;
         }
     }
 
     /**
-     * load metadata if exists.
-     * @param metadataName
-     * @return metadata
+     * reads a batch list, one "URL[,MIRROR-URL...] [WEIGHT]" per line
+     * @param path file name, or "-" for standard input
+     * @return the lines, or null if the list could not be read
      */
-    private static DownloadableMetadata tryLoadMetadata(String metadataName) {
+    private static List<String> readList(String path) {
         try {
-            ObjectInputStream stream = new ObjectInputStream(new FileInputStream(metadataName));
-            Object readMeta = stream.readObject();
-            if(readMeta instanceof DownloadableMetadata){
-                return (DownloadableMetadata)readMeta;
+            if (path.equals("-")) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+                return reader.lines().collect(Collectors.toList());
             }
-            return null;
+            return Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8);
         }
         catch (IOException e){
-            System.err.println("Failed to load metadata.");
+            System.err.println("Failed to read " + path + ".");
             return null;
         }
-        catch(ClassNotFoundException e){
-            System.err.println("Failed to load metadata.");
-            return null;
-        }
-
-    }
-
-    /**
-     * Creates TokenBucket
-     * @param i_maxBytesPerSecond
-     * @return new TokenBucket
-     */
-    private static TokenBucket initTokenBucket(Long i_maxBytesPerSecond) {
-        TokenBucket tokenBucket;
-        if (i_maxBytesPerSecond == null) {
-            tokenBucket = new TokenBucket(Long.MAX_VALUE);
-        } else {
-            //make sure bucket size is at least CHUNK_SIZE
-            long bucketSize = i_maxBytesPerSecond * 5 > HTTPRangeGetter.CHUNK_SIZE ? i_maxBytesPerSecond * 5 : HTTPRangeGetter.CHUNK_SIZE;
-            tokenBucket = new TokenBucket(bucketSize);
-        }
-        return tokenBucket;
     }
 }
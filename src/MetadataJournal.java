@@ -0,0 +1,311 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the file's metadata.
+ *
+ * The journal starts with a header record (url, file size, chunk size) and the server's traits (range support,
+ * ETag, Last-Modified, and an empty final URL, see ServerTraits), followed by one record per completed range and
+ * one per hashed block (block size, index, SHA-256), so a checkpoint only appends what changed since the previous
+ * one.
+ * Every record is framed as [int payload length][byte type][payload][int crc32 of type and payload].
+ * When the journal holds many more records than the metadata has ranges, it is rewritten in the background
+ * as a fresh snapshot and atomically renamed over the old file. The snapshot lists the block hashes in the order
+ * they were computed, like the appends it replaces.
+ * Loading stops at the first torn or corrupt record and truncates the file there.
+ */
+class MetadataJournal implements Closeable {
+    static final int MAGIC = 0x49444A31; // "IDJ1"
+    private static final byte HEADER = 1;
+    private static final byte RANGE = 2;
+    private static final byte BLOCK_HASH = 3;
+    private static final byte TRAITS = 4;
+    private static final int RANGE_RECORD_SIZE = 4 + 1 + 16 + 4;
+    private static final int HASH_RECORD_SIZE = 4 + 1 + 8 + BlockHashes.HASH_SIZE + 4;
+    private static final int COMPACT_MIN_RECORDS = 1024;
+    private static final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "metadata-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final DownloadableMetadata metadata;
+    private final Path path;
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer recordBuffer = ByteBuffer.allocate(RANGE_RECORD_SIZE * 64);
+    private final ByteBuffer rangePayload = ByteBuffer.allocate(16);
+    private final ByteBuffer hashPayload = ByteBuffer.allocate(8 + BlockHashes.HASH_SIZE);
+    private FileChannel channel;
+    private long records;
+    private boolean compacting;
+
+    private MetadataJournal(DownloadableMetadata metadata) {
+        this.metadata = metadata;
+        this.path = Paths.get(metadata.getMetadataFilename());
+    }
+
+    /**
+     * writes a snapshot of the metadata as a new journal and opens it for appending
+     * @param metadata
+     * @return journal
+     * @throws IOException
+     */
+    static MetadataJournal open(DownloadableMetadata metadata) throws IOException {
+        MetadataJournal journal = new MetadataJournal(metadata);
+        journal.compact();
+        return journal;
+    }
+
+    /**
+     * appends the ranges covered by the given chunks, merging adjacent chunks into one record, and the block
+     * hashes computed since the previous append
+     * @param i_list
+     * @throws IOException
+     */
+    synchronized void append(List<Chunk> i_list) throws IOException {
+        List<Chunk> written = new ArrayList<>(i_list.size());
+        for (Chunk i : i_list) {
+            if (i.getData() != null) {
+                written.add(i);
+            }
+        }
+        List<Integer> hashed = metadata.getBlockHashes().drainUnjournaled();
+        if (written.isEmpty() && hashed.isEmpty()) {
+            return;
+        }
+        written.sort(Comparator.comparingLong(Chunk::getOffset));
+
+        if (!written.isEmpty()) {
+            long start = written.get(0).getOffset();
+            long end = start;
+            for (Chunk i : written) {
+                if (i.getOffset() > end) {
+                    putRange(channel, start, end);
+                    start = i.getOffset();
+                }
+                end = Math.max(end, i.getOffset() + i.getSize_in_bytes());
+            }
+            putRange(channel, start, end);
+        }
+        for (int i : hashed) {
+            putHash(channel, i);
+        }
+        flushRecords(channel);
+        channel.force(false);
+
+        if (!compacting && records > Math.max(COMPACT_MIN_RECORDS, 4L * metadata.getRangeCount())) {
+            compacting = true;
+            compactor.execute(this::compactInBackground);
+        }
+    }
+
+    private void putRange(FileChannel target, long start, long end) throws IOException {
+        if (recordBuffer.remaining() < RANGE_RECORD_SIZE) {
+            flushRecords(target);
+        }
+        rangePayload.clear();
+        putRecord(recordBuffer, RANGE, rangePayload.putLong(start).putLong(end));
+        records++;
+    }
+
+    private void putHash(FileChannel target, int index) throws IOException {
+        BlockHashes hashes = metadata.getBlockHashes();
+        if (recordBuffer.remaining() < HASH_RECORD_SIZE) {
+            flushRecords(target);
+        }
+        hashPayload.clear();
+        putRecord(recordBuffer, BLOCK_HASH, hashPayload.putInt(hashes.getBlockSize()).putInt(index).put(hashes.get(index)));
+    }
+
+    private void flushRecords(FileChannel target) throws IOException {
+        recordBuffer.flip();
+        while (recordBuffer.hasRemaining()) {
+            target.write(recordBuffer);
+        }
+        recordBuffer.clear();
+    }
+
+    /**
+     * frames a record into out
+     */
+    private void putRecord(ByteBuffer out, byte type, ByteBuffer payload) {
+        payload.flip();
+        crc.reset();
+        crc.update(type);
+        crc.update(payload.duplicate());
+        out.putInt(payload.remaining()).put(type).put(payload).putInt((int) crc.getValue());
+    }
+
+    private void compactInBackground() {
+        synchronized (this) {
+            try {
+                if (channel != null) {
+                    compact();
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to compact metadata journal: " + e.getMessage());
+            } finally {
+                compacting = false;
+            }
+        }
+    }
+
+    /**
+     * rewrites the journal as a header followed by the current ranges and block hashes, then reopens it for appending
+     * @throws IOException
+     */
+    private synchronized void compact() throws IOException {
+        List<long[]> ranges = new ArrayList<>();
+        metadata.lock.lock();
+        try {
+            for (Map.Entry<Long, Long> i : metadata.getDoneRanges().intervals().entrySet()) {
+                ranges.add(new long[]{i.getKey(), i.getValue()});
+            }
+        } finally {
+            metadata.lock.unlock();
+        }
+
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeUTF(metadata.getUrl());
+        header.writeLong(metadata.getFilesize());
+        header.writeInt((int) metadata.getChunkSize());
+        header.flush();
+        ByteBuffer headerPayload = ByteBuffer.allocate(headerBytes.size()).put(headerBytes.toByteArray());
+        ByteBuffer traitsPayload = null;
+        ServerTraits traits = metadata.getTraits();
+        if (traits != null) {
+            ByteArrayOutputStream traitsBytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(traitsBytes);
+            out.writeBoolean(traits.acceptRanges);
+            out.writeUTF(traits.etag == null ? "" : traits.etag);
+            out.writeUTF(traits.lastModified == null ? "" : traits.lastModified);
+            out.writeUTF(""); //the final URL, which is not stored
+            out.flush();
+            traitsPayload = ByteBuffer.allocate(traitsBytes.size()).put(traitsBytes.toByteArray());
+        }
+
+        Path tmp = Paths.get(path + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            int traitsSize = traitsPayload == null ? 0 : 4 + 1 + traitsPayload.capacity() + 4;
+            ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + 1 + headerPayload.capacity() + 4 + traitsSize);
+            buffer.putInt(MAGIC);
+            putRecord(buffer, HEADER, headerPayload);
+            if (traitsPayload != null) {
+                putRecord(buffer, TRAITS, traitsPayload);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            for (long[] i : ranges) {
+                putRange(out, i[0], i[1]);
+            }
+            for (int i : metadata.getBlockHashes().hashedByRecency()) {
+                putHash(out, i); //in the order they were computed, which resume verification relies on
+            }
+            flushRecords(out);
+            out.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        if (channel != null) {
+            channel.close();
+        }
+        channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        records = 0;
+    }
+
+    /**
+     * rebuilds metadata from a journal, truncating a torn or corrupt tail
+     * @param i_path
+     * @return metadata, or null if the file is not a journal
+     * @throws IOException
+     */
+    static DownloadableMetadata load(String i_path) throws IOException {
+        DownloadableMetadata metadata = null;
+        long goodLength;
+        long fileLength;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(i_path), 1 << 16))) {
+            fileLength = new File(i_path).length();
+            if (fileLength < 4 || in.readInt() != MAGIC) {
+                return null;
+            }
+            goodLength = 4;
+            CRC32 crc = new CRC32();
+            byte[] payload = new byte[64];
+            while (goodLength + 9 <= fileLength) {
+                int length = in.readInt();
+                if (length < 0 || goodLength + 9 + length > fileLength) {
+                    break;
+                }
+                byte type = in.readByte();
+                if (payload.length < length) {
+                    payload = new byte[length];
+                }
+                in.readFully(payload, 0, length);
+                int expected = in.readInt();
+                crc.reset();
+                crc.update(type);
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != expected) {
+                    break;
+                }
+
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload, 0, length));
+                if (type == HEADER) {
+                    String url = record.readUTF();
+                    long fileSize = record.readLong();
+                    int chunkSize = record.readInt();
+                    String filename = DownloadableMetadata.getDataName(i_path);
+                    metadata = filename == null ? new DownloadableMetadata(url, fileSize, chunkSize)
+                            : new DownloadableMetadata(url, filename, fileSize, chunkSize);
+                } else if (type == RANGE && metadata != null) {
+                    long start = record.readLong();
+                    long end = record.readLong();
+                    metadata.addRange(new Range(start, end - 1));
+                } else if (type == TRAITS && metadata != null) {
+                    boolean acceptRanges = record.readBoolean();
+                    String etag = record.readUTF();
+                    String lastModified = record.readUTF();
+                    record.readUTF(); //the final URL, which older journals stored and is ignored
+                    metadata.setTraits(new ServerTraits(metadata.getFilesize(), acceptRanges, etag.isEmpty() ? null : etag,
+                            lastModified.isEmpty() ? null : lastModified, null));
+                } else if (type == BLOCK_HASH && metadata != null) {
+                    int blockSize = record.readInt();
+                    int index = record.readInt();
+                    byte[] hash = new byte[BlockHashes.HASH_SIZE];
+                    record.readFully(hash);
+                    metadata.getBlockHashes().load(blockSize, index, hash);
+                }
+                goodLength += 9 + length;
+            }
+        }
+
+        if (goodLength < fileLength) {
+            System.err.println("Metadata journal has a torn tail, recovering " + goodLength + " of " + fileLength + " bytes.");
+            try (FileChannel truncate = FileChannel.open(Paths.get(i_path), StandardOpenOption.WRITE)) {
+                truncate.truncate(goodLength);
+            }
+        }
+        return metadata;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and histograms of what every download in this process is doing, to find the bottleneck of a slow
+ * download: the network (per-connection rates, retries), the rate limit (time blocked in TokenBucket.take),
+ * the writer falling behind (queue depth, time getters were blocked on a full queue), the chunk buffers (pool
+ * leases, misses, waits at the cap, peak buffers in use and bytes held, summed over the ChunkPools of every
+ * DownloadManager), or the disk (write, fsync and checkpoint latency).
+ *
+ * Recording is a LongAdder add or a Histogram record, so the hot path pays a few uncontended atomic operations
+ * per chunk. The metrics are exposed as the JMX MBean "idc:type=Metrics", and with -Didc.metrics.log=FILE
+ * (or "-" for standard error) a JSON line is appended every idc.metrics.interval ms (1000 by default).
+ */
+public class Metrics implements MetricsMBean {
+    static final String LOG = System.getProperty("idc.metrics.log");
+    static final long INTERVAL = Long.getLong("idc.metrics.interval", 1000);
+
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder rangesCompleted = new LongAdder();
+    private final LongAdder rangesFailed = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final Histogram connectionRate = new Histogram();
+    private final Histogram tokenWait = new Histogram();
+    private final Histogram queueWait = new Histogram();
+    private final Histogram queueDepth = new Histogram();
+    private final Histogram writeBatch = new Histogram();
+    private final Histogram writeLatency = new Histogram();
+    private final Histogram fsyncLatency = new Histogram();
+    private final Histogram checkpointLatency = new Histogram();
+    private final Set<ChunkPool> pools = ConcurrentHashMap.newKeySet();
+    private volatile long lastQueueDepth;
+    private volatile double bytesPerSecond;
+    private long sampledAt = System.nanoTime();
+    private long sampledBytes;
+    private PrintWriter log;
+
+    private static class Holder {
+        static final Metrics INSTANCE = create();
+    }
+
+    /**
+     * @return the metrics of this process, registered with JMX on first use
+     */
+    static Metrics get() {
+        return Holder.INSTANCE;
+    }
+
+    private static Metrics create() {
+        Metrics metrics = new Metrics();
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName("idc:type=Metrics"));
+        } catch (JMException e) {
+            System.err.println("Failed to register metrics MBean: " + e.getMessage());
+        }
+        if (LOG != null) {
+            try {
+                metrics.log = LOG.equals("-")
+                        ? new PrintWriter(System.err, true)
+                        : new PrintWriter(new OutputStreamWriter(new FileOutputStream(LOG, true), StandardCharsets.UTF_8), true);
+            } catch (IOException e) {
+                System.err.println("Failed to open metrics log " + LOG + ": " + e.getMessage());
+            }
+        }
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "idc-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(metrics::sample, INTERVAL, INTERVAL, TimeUnit.MILLISECONDS);
+        return metrics;
+    }
+
+    /**
+     * @param count bytes a getter handed to the writer
+     */
+    void received(long count) {
+        bytes.add(count);
+    }
+
+    /**
+     * @param nanos time a getter was blocked in TokenBucket.take
+     */
+    void tokenWait(long nanos) {
+        if (nanos > 0) {
+            tokenWait.record(nanos);
+        }
+    }
+
+    /**
+     * @param nanos time a getter was blocked because the writer's queue was full
+     */
+    void queueWait(long nanos) {
+        queueWait.record(nanos);
+    }
+
+    void connectionStarted() {
+        activeConnections.increment();
+    }
+
+    /**
+     * @param rate bytes per second the range was delivered at
+     * @param succeeded
+     */
+    void connectionFinished(double rate, boolean succeeded) {
+        activeConnections.decrement();
+        if (succeeded) {
+            rangesCompleted.increment();
+            connectionRate.record((long) rate);
+        } else {
+            rangesFailed.increment();
+        }
+    }
+
+    /**
+     * counts a request sent again, e.g. after a stale keep-alive connection
+     */
+    void retry() {
+        retries.increment();
+    }
+
+    /**
+     * @param chunks number of chunks the writer found in its queue
+     * @param size their bytes
+     */
+    void drained(int chunks, long size) {
+        lastQueueDepth = chunks;
+        queueDepth.record(chunks);
+        if (size > 0) {
+            writeBatch.record(size);
+        }
+    }
+
+    void written(long nanos) {
+        writeLatency.record(nanos);
+    }
+
+    void synced(long nanos) {
+        fsyncLatency.record(nanos);
+    }
+
+    void checkpointed(long nanos) {
+        checkpointLatency.record(nanos);
+    }
+
+    /**
+     * @param pool a DownloadManager's pool, counted in the pool gauges until removePool
+     */
+    void addPool(ChunkPool pool) {
+        pools.add(pool);
+    }
+
+    void removePool(ChunkPool pool) {
+        pools.remove(pool);
+    }
+
+    private long sumPools(ToLongFunction<ChunkPool> gauge) {
+        long sum = 0;
+        for (ChunkPool i : pools) {
+            sum += gauge.applyAsLong(i);
+        }
+        return sum;
+    }
+
+    private synchronized void sample() {
+        long now = System.nanoTime();
+        long total = bytes.sum();
+        bytesPerSecond = (total - sampledBytes) * 1e9 / Math.max(1, now - sampledAt);
+        sampledAt = now;
+        sampledBytes = total;
+        if (log != null) {
+            log.println(getSnapshot());
+        }
+    }
+
+    @Override
+    public long getBytesDownloaded() {
+        return bytes.sum();
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return activeConnections.sum();
+    }
+
+    @Override
+    public long getConnectionBytesPerSecondP10() {
+        return connectionRate.percentile(0.10);
+    }
+
+    @Override
+    public long getConnectionBytesPerSecondP50() {
+        return connectionRate.percentile(0.50);
+    }
+
+    @Override
+    public long getRangesCompleted() {
+        return rangesCompleted.sum();
+    }
+
+    @Override
+    public long getRangesFailed() {
+        return rangesFailed.sum();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    @Override
+    public long getTokenWaitMillis() {
+        return tokenWait.getSum() / 1_000_000;
+    }
+
+    @Override
+    public long getTokenWaitP99Micros() {
+        return tokenWait.percentile(0.99) / 1000;
+    }
+
+    @Override
+    public long getQueueWaitMillis() {
+        return queueWait.getSum() / 1_000_000;
+    }
+
+    @Override
+    public long getQueueDepth() {
+        return lastQueueDepth;
+    }
+
+    @Override
+    public long getQueueDepthMax() {
+        return queueDepth.getMax();
+    }
+
+    @Override
+    public long getWriteBatchP50Bytes() {
+        return writeBatch.percentile(0.50);
+    }
+
+    @Override
+    public long getWriteLatencyP99Micros() {
+        return writeLatency.percentile(0.99) / 1000;
+    }
+
+    @Override
+    public long getFsyncLatencyP99Micros() {
+        return fsyncLatency.percentile(0.99) / 1000;
+    }
+
+    @Override
+    public long getCheckpointLatencyP99Micros() {
+        return checkpointLatency.percentile(0.99) / 1000;
+    }
+
+    @Override
+    public long getPoolLeases() {
+        return sumPools(ChunkPool::getLeases);
+    }
+
+    @Override
+    public long getPoolMisses() {
+        return sumPools(ChunkPool::getMisses);
+    }
+
+    @Override
+    public long getPoolWaits() {
+        return sumPools(ChunkPool::getWaits);
+    }
+
+    @Override
+    public long getPoolPeakInUse() {
+        return sumPools(ChunkPool::getPeakInUse);
+    }
+
+    @Override
+    public long getPoolBytes() {
+        return sumPools(ChunkPool::getBytes);
+    }
+
+    @Override
+    public String getSnapshot() {
+        return String.format(Locale.ROOT,
+                "{\"time\":%d,\"bytes\":%d,\"bytesPerSecond\":%.0f,\"activeConnections\":%d,"
+                        + "\"connectionBytesPerSecondP10\":%d,\"connectionBytesPerSecondP50\":%d,"
+                        + "\"rangesCompleted\":%d,\"rangesFailed\":%d,\"retries\":%d,"
+                        + "\"tokenWaitMillis\":%d,\"tokenWaitP99Micros\":%d,\"queueWaitMillis\":%d,\"queueDepth\":%d,\"queueDepthMax\":%d,"
+                        + "\"writeBatchP50Bytes\":%d,\"writes\":%d,\"writeLatencyP99Micros\":%d,"
+                        + "\"poolLeases\":%d,\"poolMisses\":%d,\"poolWaits\":%d,\"poolPeakInUse\":%d,\"poolBytes\":%d,"
+                        + "\"fsyncs\":%d,\"fsyncLatencyP99Micros\":%d,\"checkpoints\":%d,\"checkpointLatencyP99Micros\":%d}",
+                System.currentTimeMillis(), getBytesDownloaded(), getBytesPerSecond(), getActiveConnections(),
+                getConnectionBytesPerSecondP10(), getConnectionBytesPerSecondP50(),
+                getRangesCompleted(), getRangesFailed(), getRetries(),
+                getTokenWaitMillis(), getTokenWaitP99Micros(), getQueueWaitMillis(), getQueueDepth(), getQueueDepthMax(),
+                getWriteBatchP50Bytes(), writeLatency.getCount(), getWriteLatencyP99Micros(),
+                getPoolLeases(), getPoolMisses(), getPoolWaits(), getPoolPeakInUse(), getPoolBytes(),
+                fsyncLatency.getCount(), getFsyncLatencyP99Micros(), checkpointLatency.getCount(), getCheckpointLatencyP99Micros());
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * The JMX view of Metrics, registered as "idc:type=Metrics".
+ * Latencies are in microseconds, rates in bytes per second.
+ */
+public interface MetricsMBean {
+    long getBytesDownloaded();
+
+    double getBytesPerSecond();
+
+    long getActiveConnections();
+
+    long getConnectionBytesPerSecondP10();
+
+    long getConnectionBytesPerSecondP50();
+
+    long getRangesCompleted();
+
+    long getRangesFailed();
+
+    long getRetries();
+
+    long getTokenWaitMillis();
+
+    long getTokenWaitP99Micros();
+
+    long getQueueWaitMillis();
+
+    long getQueueDepth();
+
+    long getQueueDepthMax();
+
+    long getWriteBatchP50Bytes();
+
+    long getWriteLatencyP99Micros();
+
+    long getFsyncLatencyP99Micros();
+
+    long getCheckpointLatencyP99Micros();
+
+    long getPoolLeases();
+
+    /**
+     * @return pool leases that found no free buffer, the pool's hit rate is 1 - misses / leases
+     */
+    long getPoolMisses();
+
+    long getPoolWaits();
+
+    long getPoolPeakInUse();
+
+    long getPoolBytes();
+
+    /**
+     * @return everything above as one JSON object, as written to the metrics log
+     */
+    String getSnapshot();
+}
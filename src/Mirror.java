@@ -0,0 +1,162 @@
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * One of the URLs a file can be downloaded from, and how well it has been doing.
+ */
+class Mirror {
+    private static final double SPEED_WEIGHT = 0.3;
+
+    final String url;
+    private ServerTraits traits;
+    private double speed = 0; // bytes per second, exponentially weighted over ranges
+    private int active = 0;
+    private int consecutiveFailures = 0;
+    private boolean dropped = false;
+
+    Mirror(String url) {
+        this.url = url;
+    }
+
+    /**
+     * learns the file's traits with a HEAD request, or with a GET of its first byte when HEAD is refused or does
+     * not tell whether ranges are supported; neither transfers the body
+     * @throws IOException
+     */
+    void probe() throws IOException {
+        HttpURLConnection connection = open("HEAD", null);
+        try {
+            int code = connection.getResponseCode();
+            String acceptRanges = connection.getHeaderField("Accept-Ranges");
+            long size = connection.getContentLengthLong();
+            if (code == HttpURLConnection.HTTP_OK && size >= 0 && acceptRanges != null) {
+                traits = traits(connection, size, acceptRanges.trim().equalsIgnoreCase("bytes"));
+                return;
+            }
+        } finally {
+            connection.disconnect();
+        }
+
+        connection = open("GET", "bytes=0-0");
+        try {
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                String contentRange = connection.getHeaderField("Content-Range");
+                long size = -1;
+                if (contentRange != null && contentRange.lastIndexOf('/') >= 0) {
+                    try {
+                        size = Long.parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1).trim());
+                    } catch (NumberFormatException e) {
+                        size = -1;
+                    }
+                }
+                if (size < 0) {
+                    throw new IOException("No file size in Content-Range: " + contentRange);
+                }
+                traits = traits(connection, size, true);
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                if (connection.getContentLengthLong() < 0) {
+                    throw new IOException("No file size in the response");
+                }
+                traits = traits(connection, connection.getContentLengthLong(), false);
+            } else {
+                throw new IOException("Response code " + code);
+            }
+        } finally {
+            connection.disconnect(); //closes the socket, a server that ignored the range never gets to stream the file
+        }
+    }
+
+    private HttpURLConnection open(String method, String range) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(ConnectionPool.CONNECT_TIMEOUT);
+        connection.setReadTimeout(ConnectionPool.READ_TIMEOUT);
+        if (range != null) {
+            connection.setRequestProperty("Range", range);
+        }
+        return connection;
+    }
+
+    private ServerTraits traits(HttpURLConnection connection, long size, boolean acceptRanges) {
+        String finalUrl = connection.getURL().toString();
+        return new ServerTraits(size, acceptRanges, connection.getHeaderField("ETag"),
+                connection.getHeaderField("Last-Modified"), finalUrl.equals(url) ? null : finalUrl);
+    }
+
+    /**
+     * uses traits stored by an earlier run instead of probing, without their final URL (see ServerTraits), so
+     * ranges go to the mirror's own URL
+     * @param traits
+     */
+    void adopt(ServerTraits traits) {
+        this.traits = new ServerTraits(traits.size, traits.acceptRanges, traits.etag, traits.lastModified, null);
+    }
+
+    ServerTraits getTraits() {
+        return traits;
+    }
+
+    /**
+     * @return the URL to send range requests to, past any redirect seen by the probe
+     */
+    String getRequestUrl() {
+        return traits != null && traits.finalUrl != null ? traits.finalUrl : url;
+    }
+
+    long getSize() {
+        return traits == null ? -1 : traits.size;
+    }
+
+    String getEtag() {
+        return traits == null ? null : traits.etag;
+    }
+
+    double getSpeed() {
+        return speed;
+    }
+
+    int getActive() {
+        return active;
+    }
+
+    boolean isDropped() {
+        return dropped;
+    }
+
+    void started() {
+        active++;
+    }
+
+    /**
+     * records a range that finished
+     * @param bytesPerSecond the rate the range was delivered at
+     */
+    void succeeded(double bytesPerSecond) {
+        active--;
+        consecutiveFailures = 0;
+        if (bytesPerSecond > 0) {
+            speed = speed == 0 ? bytesPerSecond : SPEED_WEIGHT * bytesPerSecond + (1 - SPEED_WEIGHT) * speed;
+        }
+    }
+
+    /**
+     * records a range that failed or stalled, halving the mirror's share
+     * @return number of failures in a row
+     */
+    int failed() {
+        active--;
+        speed /= 2;
+        return ++consecutiveFailures;
+    }
+
+    void drop() {
+        dropped = true;
+    }
+
+    @Override
+    public String toString() {
+        return url + String.format(" (%.1f MB/s%s)", speed / (1 << 20), dropped ? ", dropped" : "");
+    }
+}
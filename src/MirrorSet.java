@@ -0,0 +1,197 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The mirrors a file is downloaded from.
+ *
+ * Each range goes to the mirror with the fewest in-flight ranges per unit of measured speed, so over time every
+ * mirror serves a share of the file proportional to its speed. Mirrors that were not measured yet are tried
+ * first. A failure halves a mirror's speed, and MAX_FAILURES failures in a row drop it unless it is the last one.
+ * A permanent failure, such as a 404 for a file that was removed, drops it at once, even the last one.
+ */
+class MirrorSet {
+    private static final int MAX_FAILURES = 3;
+
+    private final List<Mirror> mirrors = new ArrayList<>();
+    private final ProgressTracker progress;
+    private Mirror reference;
+
+    /**
+     * @param urls comma separated mirror URLs of the same file
+     * @param progress receives a message for every mirror dropped
+     */
+    MirrorSet(String urls, ProgressTracker progress) {
+        this.progress = progress;
+        for (String i : urls.split(",")) {
+            if (!i.trim().isEmpty()) {
+                mirrors.add(new Mirror(i.trim()));
+            }
+        }
+    }
+
+    /**
+     * @return the first URL, which names the file
+     */
+    String getPrimaryUrl() {
+        return mirrors.get(0).url;
+    }
+
+    /**
+     * probes every mirror and drops those that cannot be reached or disagree with the first one that answered
+     * on the file size or ETag, and those without range support if another mirror has it
+     * @return the file size
+     * @throws IOException if no mirror could be reached
+     */
+    synchronized long probe() throws IOException {
+        return probe(null);
+    }
+
+    /**
+     * resumes with traits stored by an earlier run: the primary mirror is not probed again but sends its ranges
+     * with If-Range, and the other mirrors are probed and checked against the stored traits
+     * @param stored
+     * @return the file size
+     * @throws IOException if no mirror could be reached
+     */
+    synchronized long resume(ServerTraits stored) throws IOException {
+        mirrors.get(0).adopt(stored);
+        return probe(mirrors.get(0));
+    }
+
+    private long probe(Mirror known) throws IOException {
+        reference = known;
+        for (Mirror i : mirrors) {
+            if (i == known) {
+                continue;
+            }
+            try {
+                i.probe();
+            } catch (IOException e) {
+                progress.message("Mirror " + i.url + " unreachable, dropping it: " + e.getMessage());
+                i.drop();
+                continue;
+            }
+            if (reference == null) {
+                reference = i;
+            } else if (i.getSize() != reference.getSize()) {
+                progress.message("Mirror " + i.url + " has size " + i.getSize() + " instead of " + reference.getSize() + ", dropping it");
+                i.drop();
+            } else if (i.getEtag() != null && reference.getEtag() != null && !i.getEtag().equals(reference.getEtag())) {
+                progress.message("Mirror " + i.url + " has ETag " + i.getEtag() + " instead of " + reference.getEtag() + ", dropping it");
+                i.drop();
+            }
+        }
+        if (reference == null) {
+            throw new IOException("No mirror could be reached");
+        }
+        if (!reference.getTraits().acceptRanges) {
+            for (Mirror i : mirrors) {
+                if (!i.isDropped() && i.getTraits().acceptRanges) {
+                    reference = i;
+                    break;
+                }
+            }
+        }
+        for (Mirror i : mirrors) {
+            if (!i.isDropped() && i.getTraits().acceptRanges != reference.getTraits().acceptRanges) {
+                progress.message("Mirror " + i.url + " does not serve ranges, dropping it");
+                i.drop();
+            }
+        }
+        return reference.getSize();
+    }
+
+    /**
+     * @return the traits of the mirror the others were checked against
+     */
+    synchronized ServerTraits getTraits() {
+        return reference.getTraits();
+    }
+
+    /**
+     * @return true if a mirror answered a range with a different version of the file
+     */
+    synchronized boolean hasChanged() {
+        for (Mirror i : mirrors) {
+            if (i.getTraits() != null && i.getTraits().isChanged()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the mirror the next range should come from, or null if every mirror was dropped
+     */
+    synchronized Mirror pick() {
+        Mirror best = null;
+        double bestLoad = Double.MAX_VALUE;
+        for (Mirror i : mirrors) {
+            if (i.isDropped()) {
+                continue;
+            }
+            double load = i.getSpeed() == 0 ? i.getActive() - 1e9 : (i.getActive() + 1) / i.getSpeed();
+            if (best == null || load < bestLoad) {
+                best = i;
+                bestLoad = load;
+            }
+        }
+        if (best != null) {
+            best.started();
+        }
+        return best;
+    }
+
+    /**
+     * @param mirror
+     * @param bytesPerSecond the rate a range from mirror was delivered at
+     */
+    synchronized void succeeded(Mirror mirror, double bytesPerSecond) {
+        mirror.succeeded(bytesPerSecond);
+    }
+
+    /**
+     * @param mirror a mirror a range failed or stalled on
+     */
+    synchronized void failed(Mirror mirror) {
+        if (mirror.failed() >= MAX_FAILURES && liveMirrors() > 1 && !mirror.isDropped()) {
+            progress.message("Mirror " + mirror.url + " keeps failing, dropping it");
+            mirror.drop();
+        }
+    }
+
+    /**
+     * drops a mirror that failed in a way retrying will not fix
+     * @param mirror
+     * @param reason
+     */
+    synchronized void drop(Mirror mirror, String reason) {
+        if (!mirror.isDropped()) {
+            progress.message("Mirror " + mirror.url + " failed for good, dropping it: " + reason);
+            mirror.drop();
+        }
+    }
+
+    private int liveMirrors() {
+        int live = 0;
+        for (Mirror i : mirrors) {
+            if (!i.isDropped()) {
+                live++;
+            }
+        }
+        return live;
+    }
+
+    /**
+     * @return number of mirrors
+     */
+    int size() {
+        return mirrors.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mirrors.toString();
+    }
+}
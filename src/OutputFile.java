@@ -0,0 +1,177 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The downloaded file on disk.
+ *
+ * Chunks are written as extents: a batch sorted by offset is cut into runs of contiguous chunks of at most
+ * EXTENT_SIZE bytes that never cross an EXTENT_SIZE-aligned boundary, and every run is written with a single
+ * gathering write (CHANNEL mode) or copied into a memory-mapped window of the file (MAPPED mode).
+ */
+class OutputFile implements Closeable {
+    static final int EXTENT_SIZE = Integer.getInteger("idc.extentSize", 1 << 20);
+    static final OutputMode OUTPUT_MODE = OutputMode.fromProperty(System.getProperty("idc.outputMode"));
+    private static final long WINDOW_SIZE = 64L << 20;
+    private static final int MAX_WINDOWS = 16;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final FileWriter.DurabilityMode durabilityMode;
+    private final OutputMode outputMode;
+    private final long fileSize;
+    private final ByteBuffer[] extent = new ByteBuffer[Math.max(1, EXTENT_SIZE / HTTPRangeGetter.CHUNK_SIZE)];
+    private final LinkedHashMap<Long, MappedByteBuffer> windows = new LinkedHashMap<>(MAX_WINDOWS, 0.75f, true);
+    private final Map<Long, MappedByteBuffer> dirtyWindows = new LinkedHashMap<>();
+    private long writes = 0;
+
+    OutputFile(String filename, long fileSize, FileWriter.DurabilityMode durabilityMode, OutputMode outputMode) throws IOException {
+        this.file = new RandomAccessFile(filename, durabilityMode.fileMode);
+        this.channel = file.getChannel();
+        this.durabilityMode = durabilityMode;
+        this.outputMode = outputMode;
+        this.fileSize = fileSize;
+        if (outputMode == OutputMode.MAPPED && file.length() < fileSize) {
+            file.setLength(fileSize);
+        }
+    }
+
+    /**
+     * writes a batch of chunks as coalesced extents
+     * @param i_sorted data chunks sorted by offset
+     * @throws IOException
+     */
+    void write(List<Chunk> i_sorted) throws IOException {
+        int count = 0;
+        long extentStart = 0;
+        long extentEnd = 0;
+        for (Chunk i : i_sorted) {
+            long offset = i.getOffset();
+            long end = offset + i.getSize_in_bytes();
+            boolean contiguous = count > 0 && offset == extentEnd && count < extent.length
+                    && end - extentStart <= EXTENT_SIZE
+                    && (end - 1) / EXTENT_SIZE == extentStart / EXTENT_SIZE;
+            if (!contiguous && count > 0) {
+                writeExtent(extentStart, count);
+                count = 0;
+            }
+            if (count == 0) {
+                extentStart = offset;
+            }
+            extent[count++] = i.getData();
+            extentEnd = end;
+        }
+        if (count > 0) {
+            writeExtent(extentStart, count);
+        }
+    }
+
+    private void writeExtent(long position, int count) throws IOException {
+        if (outputMode == OutputMode.MAPPED) {
+            for (int i = 0; i < count; i++) {
+                position = writeMapped(extent[i], position);
+            }
+        } else {
+            channel.position(position);
+            int first = 0;
+            while (first < count) {
+                channel.write(extent, first, count - first);
+                while (first < count && !extent[first].hasRemaining()) {
+                    first++;
+                }
+            }
+        }
+        writes++;
+        for (int i = 0; i < count; i++) {
+            extent[i] = null;
+        }
+    }
+
+    /**
+     * copies a buffer into the mapped windows covering [position, position + remaining)
+     * @return position after the buffer
+     */
+    private long writeMapped(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            long windowStart = position - position % WINDOW_SIZE;
+            MappedByteBuffer window = window(windowStart);
+            int index = (int) (position - windowStart);
+            int length = Math.min(buffer.remaining(), window.capacity() - index);
+            window.put(index, buffer, buffer.position(), length);
+            buffer.position(buffer.position() + length);
+            position += length;
+            if (durabilityMode == FileWriter.DurabilityMode.SYNC) {
+                window.force(index, length);
+            } else {
+                dirtyWindows.put(windowStart, window);
+            }
+        }
+        return position;
+    }
+
+    private MappedByteBuffer window(long windowStart) throws IOException {
+        MappedByteBuffer window = windows.get(windowStart);
+        if (window == null) {
+            if (windows.size() >= MAX_WINDOWS) {
+                Iterator<Map.Entry<Long, MappedByteBuffer>> eldest = windows.entrySet().iterator();
+                Map.Entry<Long, MappedByteBuffer> evicted = eldest.next();
+                if (dirtyWindows.remove(evicted.getKey()) != null) {
+                    evicted.getValue().force();
+                }
+                eldest.remove();
+            }
+            long size = Math.min(WINDOW_SIZE, fileSize - windowStart);
+            window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, size);
+            windows.put(windowStart, window);
+        }
+        return window;
+    }
+
+    /**
+     * makes everything written so far durable
+     * @throws IOException
+     */
+    void force() throws IOException {
+        if (outputMode == OutputMode.MAPPED) {
+            for (MappedByteBuffer i : dirtyWindows.values()) {
+                i.force();
+            }
+            dirtyWindows.clear();
+        } else {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * @return number of extents written
+     */
+    long getWrites() {
+        return writes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        windows.clear();
+        file.close();
+    }
+
+    /**
+     * selects how extents reach the file, set with -Didc.outputMode=channel|mapped
+     */
+    enum OutputMode {
+        CHANNEL,
+        MAPPED;
+
+        static OutputMode fromProperty(String value) {
+            return value == null ? CHANNEL : OutputMode.valueOf(value.trim().toUpperCase());
+        }
+    }
+}
@@ -0,0 +1,83 @@
+import java.util.Locale;
+
+/**
+ * A snapshot of a download's progress: bytes done out of the file's size, the smoothed current throughput,
+ * the average throughput since the download (or its resume) started, and the time left at the current throughput.
+ * It is in the unnamed package, like DownloadEngine.
+ */
+public final class ProgressEvent {
+    private final String name;
+    private final long doneBytes;
+    private final long totalBytes;
+    private final double bytesPerSecond;
+    private final double averageBytesPerSecond;
+    private final long etaMillis;
+
+    /**
+     * @param name file name of the download
+     * @param doneBytes
+     * @param totalBytes
+     * @param bytesPerSecond exponentially weighted moving average of the throughput
+     * @param averageBytesPerSecond
+     * @param etaMillis or -1 if unknown
+     */
+    ProgressEvent(String name, long doneBytes, long totalBytes, double bytesPerSecond, double averageBytesPerSecond, long etaMillis) {
+        this.name = name;
+        this.doneBytes = doneBytes;
+        this.totalBytes = totalBytes;
+        this.bytesPerSecond = bytesPerSecond;
+        this.averageBytesPerSecond = averageBytesPerSecond;
+        this.etaMillis = etaMillis;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getDoneBytes() {
+        return doneBytes;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return completed percentage, rounded down
+     */
+    public int getPercent() {
+        return totalBytes == 0 ? 100 : (int) (doneBytes * 100 / totalBytes);
+    }
+
+    /**
+     * @return current throughput, smoothed over about ProgressTracker.SMOOTHING_SECONDS
+     */
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @return bytes downloaded since the download started or resumed, per second
+     */
+    public double getAverageBytesPerSecond() {
+        return averageBytesPerSecond;
+    }
+
+    /**
+     * @return milliseconds left at the current throughput, 0 when done, or -1 while nothing is arriving
+     */
+    public long getEtaMillis() {
+        return etaMillis;
+    }
+
+    public boolean isDone() {
+        return doneBytes >= totalBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%s: %d/%d bytes (%d%%), %.1f MB/s, average %.1f MB/s, ETA %s",
+                name, doneBytes, totalBytes, getPercent(), bytesPerSecond / (1 << 20), averageBytesPerSecond / (1 << 20),
+                etaMillis < 0 ? "unknown" : (etaMillis / 1000) + " s");
+    }
+}
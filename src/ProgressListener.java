@@ -0,0 +1,21 @@
+/**
+ * Receives the progress of a download, and the messages it would otherwise have printed: mirrors dropped,
+ * ranges retried, connection counts changed, hashes verified.
+ *
+ * A ProgressEvent is published after every batch the download's FileWriter checkpoints, so at least every
+ * FileWriter.FLUSH_INTERVAL ms while the download runs, and once more when its last batch is written.
+ * Events are delivered on the writer's thread: a listener should return quickly and must not block.
+ * It is in the unnamed package, like DownloadEngine.
+ */
+public interface ProgressListener {
+    /**
+     * @param event
+     */
+    void progress(ProgressEvent event);
+
+    /**
+     * @param text a status or warning line about the download
+     */
+    default void message(String text) {
+    }
+}
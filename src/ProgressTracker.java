@@ -0,0 +1,106 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps the progress of one download as running counters and publishes it, and the download's messages,
+ * to ProgressListeners.
+ *
+ * The FileWriter reports the bytes done after every checkpoint, which the metadata's RangeSet keeps as a running
+ * total, so an update costs a few arithmetic operations whatever the size of the file. The current throughput is
+ * an exponentially weighted moving average with a time constant of SMOOTHING_SECONDS, so irregular flush
+ * intervals weigh by their length and a stalled download decays towards zero instead of keeping its last rate.
+ */
+class ProgressTracker {
+    static final double SMOOTHING_SECONDS = 5;
+
+    private final String name;
+    private final List<ProgressListener> listeners = new CopyOnWriteArrayList<>();
+    private long totalBytes;
+    private long startedAt;
+    private long startBytes;
+    private long lastAt;
+    private long lastBytes;
+    private double bytesPerSecond;
+    private volatile ProgressEvent last;
+
+    /**
+     * @param name file name published with every event
+     */
+    ProgressTracker(String name) {
+        this.name = name;
+    }
+
+    void addListener(ProgressListener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(ProgressListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * starts measuring from what an earlier run already downloaded
+     * @param totalBytes
+     * @param doneBytes
+     */
+    synchronized void start(long totalBytes, long doneBytes) {
+        this.totalBytes = totalBytes;
+        startedAt = lastAt = System.nanoTime();
+        startBytes = lastBytes = doneBytes;
+        bytesPerSecond = 0;
+        last = new ProgressEvent(name, doneBytes, totalBytes, 0, 0, doneBytes >= totalBytes ? 0 : -1);
+    }
+
+    /**
+     * updates the counters and publishes an event
+     * @param doneBytes bytes of the file that are on disk
+     */
+    void update(long doneBytes) {
+        ProgressEvent event;
+        synchronized (this) {
+            long now = System.nanoTime();
+            double seconds = (now - lastAt) / 1e9;
+            if (seconds > 0) {
+                //the first interval seeds the average instead of being blended with a rate of zero
+                double weight = lastAt == startedAt ? 1 : 1 - Math.exp(-seconds / SMOOTHING_SECONDS);
+                bytesPerSecond += weight * ((doneBytes - lastBytes) / seconds - bytesPerSecond);
+            }
+            lastAt = now;
+            lastBytes = doneBytes;
+            double elapsed = (now - startedAt) / 1e9;
+            double average = elapsed > 0 ? (doneBytes - startBytes) / elapsed : 0;
+            long left = Math.max(0, totalBytes - doneBytes);
+            long eta = left == 0 ? 0 : bytesPerSecond >= 1 ? (long) (left * 1000 / bytesPerSecond) : -1;
+            event = new ProgressEvent(name, doneBytes, totalBytes, bytesPerSecond, average, eta);
+            last = event;
+        }
+        for (ProgressListener i : listeners) {
+            try {
+                i.progress(event);
+            } catch (RuntimeException e) {
+                System.err.println("Progress listener failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * passes a status or warning line to the listeners
+     * @param text
+     */
+    void message(String text) {
+        for (ProgressListener i : listeners) {
+            try {
+                i.message(text);
+            } catch (RuntimeException e) {
+                System.err.println("Progress listener failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * @return the latest progress, without waiting for the next event
+     */
+    ProgressEvent getLast() {
+        return last;
+    }
+}
@@ -0,0 +1,395 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out ranges to a persistent set of HTTPRangeGetter workers.
+ *
+ * Workers pull missing ranges from the metadata one at a time. When none are left, an idle worker steals the
+ * second half of the in-flight range that is furthest from being done (like aria2 or IDM segment splitting),
+ * so every connection stays busy until the last byte. A range whose getter fails is queued again from where
+ * it stopped. Every range is fetched from the mirror the MirrorSet picks for it.
+ * The number of workers follows a ConnectionController, which is sampled by the thread waiting in run().
+ * When downloads share a cap on connections, a worker holds one of the shared permits while it fetches a range,
+ * and when they share a BandwidthTree each range is charged to its own connection bucket in that tree.
+ * From a server without range support the rest of the file is fetched as one range that is never split.
+ * Ranges are sized to about PARTITION_SECONDS of one connection's share of the sampled throughput, within
+ * MIN_PARTITION_SIZE and MAX_PARTITION_SIZE and in whole hash blocks, and near the end to an even share of what
+ * is left, so a fast link gets long ranges and the tail is spread over every connection.
+ * abort() cuts every in-flight range short where it is, for a download that is paused or cancelled.
+ * A worker whose ranges fail waits RETRY_DELAY, doubling up to MAX_RETRY_DELAY, before its next one. The scheduler
+ * fails for good, with a reason for getFailure(), when a worker fails MAX_RETRIES times in a row without
+ * delivering a byte or when every mirror was dropped, e.g. after each answered 404.
+ */
+class RangeScheduler {
+    static final long MIN_SPLIT_SIZE = 64L * HTTPRangeGetter.CHUNK_SIZE;
+    static final long MIN_PARTITION_SIZE = 1L << 20;
+    static final long MAX_PARTITION_SIZE = 256L << 20;
+    private static final double PARTITION_SECONDS = 4;
+    private static final long RETRY_DELAY = 1000;
+    private static final long MAX_RETRY_DELAY = 30_000;
+    static final int MAX_RETRIES = Integer.getInteger("idc.maxRetries", 8);
+    private static final Metrics METRICS = Metrics.get();
+
+    private final MirrorSet mirrors;
+    private final DownloadableMetadata metadata;
+    private final ChunkQueue queue;
+    private final TokenBucket tokenBucket;
+    private final ChunkPool chunkPool;
+    private final ConnectionPool connectionPool;
+    private final Semaphore connectionPermits;
+    private final BandwidthTree bandwidth;
+    private final ProgressTracker progress;
+    private final ArrayDeque<Range> pending = new ArrayDeque<>();
+    private final List<ActiveRange> inFlight = new ArrayList<>();
+    private final Lock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final LongAdder delivered = new LongAdder();
+    private final AtomicLong failures = new AtomicLong();
+    private int activeWorkers = 0;
+    private int targetWorkers = 0;
+    private boolean singleStream = false;
+    private boolean stopped = false;
+    private volatile boolean aborted = false;
+    private volatile String failure;
+    private double throughput = 0; //bytes per second at the last sample
+
+    RangeScheduler(MirrorSet mirrors, DownloadableMetadata metadata, ChunkQueue queue, TokenBucket tokenBucket,
+                   ChunkPool chunkPool, ConnectionPool connectionPool) {
+        this(mirrors, metadata, queue, tokenBucket, chunkPool, connectionPool, null, null, new ProgressTracker(metadata.getFilename()));
+    }
+
+    /**
+     * @param mirrors
+     * @param metadata
+     * @param queue
+     * @param tokenBucket
+     * @param chunkPool
+     * @param connectionPool
+     * @param connectionPermits shared by every download that may run at once, or null for no shared cap
+     * @param bandwidth tree tokenBucket belongs to, or null to charge tokenBucket directly
+     * @param progress receives the scheduler's messages
+     */
+    RangeScheduler(MirrorSet mirrors, DownloadableMetadata metadata, ChunkQueue queue, TokenBucket tokenBucket,
+                   ChunkPool chunkPool, ConnectionPool connectionPool, Semaphore connectionPermits, BandwidthTree bandwidth,
+                   ProgressTracker progress) {
+        this.mirrors = mirrors;
+        this.metadata = metadata;
+        this.queue = queue;
+        this.tokenBucket = tokenBucket;
+        this.chunkPool = chunkPool;
+        this.connectionPool = connectionPool;
+        this.connectionPermits = connectionPermits;
+        this.bandwidth = bandwidth;
+        this.progress = progress;
+    }
+
+    /**
+     * downloads every missing range with workers of executor, as many as the controller asks for
+     * @param executor
+     * @param controller
+     * @throws InterruptedException
+     */
+    void run(ExecutorService executor, ConnectionController controller) throws InterruptedException {
+        lock.lock();
+        try {
+            if (aborted) {
+                return;
+            }
+            pending.clear();
+            metadata.ResetPoint();
+            singleStream = !mirrors.getTraits().acceptRanges;
+            stopped = false;
+            throughput = 0;
+            setTargetWorkers(executor, controller.current());
+
+            long sampledAt = System.nanoTime();
+            long sampledBytes = delivered.sum();
+            long sampledFailures = failures.get();
+            while (activeWorkers > 0) {
+                changed.await(ConnectionController.SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+                long now = System.nanoTime();
+                if (now - sampledAt < TimeUnit.MILLISECONDS.toNanos(ConnectionController.SAMPLE_INTERVAL)) {
+                    continue;
+                }
+                long bytes = delivered.sum();
+                long failed = failures.get();
+                throughput = (bytes - sampledBytes) * 1e9 / (now - sampledAt);
+                int target = controller.sample(throughput, failed - sampledFailures);
+                if (target != targetWorkers && activeWorkers > 0 && !stopped && !aborted) {
+                    progress.message(String.format("Connections: %d -> %d (%.1f MB/s)", targetWorkers, target, throughput / (1 << 20)));
+                    setTargetWorkers(executor, target);
+                }
+                sampledAt = now;
+                sampledBytes = bytes;
+                sampledFailures = failed;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * starts workers up to target, extra workers retire when they finish their current range.
+     * must be called with lock held
+     */
+    private void setTargetWorkers(ExecutorService executor, int target) {
+        targetWorkers = target;
+        while (activeWorkers < targetWorkers) {
+            activeWorkers++;
+            executor.execute(this::work);
+        }
+        changed.signalAll();
+    }
+
+    /**
+     * worker loop: download ranges until there is nothing left to download or steal, or the worker is not needed
+     */
+    private void work() {
+        boolean retired = false;
+        int retries = 0; //failures in a row without a delivered byte
+        try {
+            ActiveRange range;
+            while ((range = next()) != null) {
+                boolean succeeded = false;
+                if (connectionPermits != null) {
+                    try {
+                        connectionPermits.acquire();
+                    } catch (InterruptedException e) {
+                        done(range);
+                        throw e;
+                    }
+                }
+                Mirror mirror = mirrors.pick();
+                if (mirror == null) {
+                    if (connectionPermits != null) {
+                        connectionPermits.release();
+                    }
+                    done(range);
+                    fail("No mirror left to download from.");
+                    continue; //next() retires the worker
+                }
+                String url = mirror.getRequestUrl();
+                TokenBucket bucket = bandwidth == null ? tokenBucket : bandwidth.forConnection(tokenBucket, url);
+                long from = range.getPosition();
+                METRICS.connectionStarted();
+                try {
+                    new HTTPRangeGetter(url, range, queue, bucket, chunkPool, connectionPool, mirror.getTraits()).downloadRange();
+                    succeeded = true;
+                    retries = 0;
+                    mirrors.succeeded(mirror, range.throughput());
+                } catch (IOException | RuntimeException e) {
+                    String reason = e instanceof IOException ? e.getMessage() : e.toString();
+                    failures.incrementAndGet();
+                    mirrors.failed(mirror);
+                    retries = range.getPosition() > from ? 1 : retries + 1;
+                    if (mirrors.hasChanged()) {
+                        stop();
+                    } else if (aborted) {
+                        //paused or cancelled, the range was cut short on purpose
+                    } else if (e instanceof HttpStatusException && ((HttpStatusException) e).isPermanent()) {
+                        mirrors.drop(mirror, reason);
+                    } else if (retries > MAX_RETRIES) {
+                        fail("Giving up after " + MAX_RETRIES + " retries: " + reason);
+                    } else {
+                        progress.message("Range " + range.getPosition() + "-" + range.getEnd() + " from " + mirror.url
+                                + " failed, retrying: " + reason);
+                    }
+                } finally {
+                    METRICS.connectionFinished(range.throughput(), succeeded);
+                    if (connectionPermits != null) {
+                        connectionPermits.release();
+                    }
+                    done(range);
+                }
+                if (!succeeded) {
+                    backOff(Math.min(MAX_RETRY_DELAY, RETRY_DELAY << Math.min(retries - 1, 16)));
+                }
+            }
+            retired = true; //next() already removed this worker
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!retired) {
+                lock.lock();
+                try {
+                    activeWorkers--;
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the next range to download, waiting while other workers may still fail or become splittable,
+     * or null when every range was downloaded or this worker should retire
+     */
+    private ActiveRange next() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                if (activeWorkers > targetWorkers || aborted) {
+                    return retire();
+                }
+                Range range = pending.poll();
+                if (range == null) {
+                    range = singleStream ? metadata.getMissingRange(Long.MAX_VALUE) : metadata.getMissingRange(partitionLength());
+                }
+                if (range == null && !singleStream) {
+                    range = stealFromSlowest();
+                }
+                if (range != null) {
+                    ActiveRange active = new ActiveRange(range, delivered);
+                    inFlight.add(active);
+                    return active;
+                }
+                if (inFlight.isEmpty()) {
+                    return retire();
+                }
+                changed.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * waits before a worker's next range after a failure, cut short by abort() or when the worker should retire
+     * @param millis
+     */
+    private void backOff(long millis) throws InterruptedException {
+        lock.lock();
+        try {
+            long left = TimeUnit.MILLISECONDS.toNanos(millis);
+            while (left > 0 && activeWorkers <= targetWorkers && !aborted) {
+                left = changed.awaitNanos(left);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * must be called with lock held
+     * @return longest range to take from the metadata next, the metadata's partition size until the first sample
+     */
+    private long partitionLength() {
+        long length = metadata.getPartitionBytes();
+        if (throughput > 0) {
+            length = (long) (throughput / Math.max(1, activeWorkers) * PARTITION_SECONDS);
+        }
+        long left = metadata.getFilesize() - metadata.getDoneBytes();
+        length = Math.min(length, left / Math.max(1, targetWorkers));
+        length = Math.max(MIN_PARTITION_SIZE, Math.min(MAX_PARTITION_SIZE, length));
+        long align = Math.max(HTTPRangeGetter.CHUNK_SIZE, metadata.getBlockHashes().getBlockSize());
+        return (length + align - 1) / align * align;
+    }
+
+    /**
+     * retires every worker once its current range ends, e.g. after the file changed on the server
+     */
+    private void stop() {
+        lock.lock();
+        try {
+            pending.clear();
+            stopped = true;
+            targetWorkers = 0;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * retires every worker and cuts the in-flight ranges short at their next read, for good: run() returns at once
+     * afterwards. A getter blocked in a token bucket is only released by terminating the bucket.
+     */
+    void abort() {
+        lock.lock();
+        try {
+            aborted = true;
+            pending.clear();
+            targetWorkers = 0;
+            for (ActiveRange i : inFlight) {
+                i.cancel();
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * ends the download for good: aborts it, and keeps the reason for getFailure()
+     * @param reason
+     */
+    private void fail(String reason) {
+        lock.lock();
+        try {
+            if (failure == null && !aborted) {
+                failure = reason;
+                abort();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return why the scheduler gave up, or null if it did not
+     */
+    String getFailure() {
+        return failure;
+    }
+
+    private ActiveRange retire() {
+        activeWorkers--;
+        changed.signalAll();
+        return null;
+    }
+
+    /**
+     * splits the in-flight range with the longest estimated time left
+     * @return its second half, or null if no in-flight range is long enough to split
+     */
+    private Range stealFromSlowest() {
+        List<ActiveRange> candidates = new ArrayList<>(inFlight);
+        candidates.sort((a, b) -> Double.compare(b.estimatedTimeLeft(), a.estimatedTimeLeft()));
+        for (ActiveRange i : candidates) {
+            Range tail = i.split(MIN_SPLIT_SIZE, metadata.getBlockHashes().getBlockSize());
+            if (tail != null) {
+                return tail;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * retires a range, queueing whatever its getter did not deliver
+     * @param range
+     */
+    private void done(ActiveRange range) {
+        lock.lock();
+        try {
+            inFlight.remove(range);
+            Range left = range.remaining();
+            if (left != null) {
+                pending.add(left);
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
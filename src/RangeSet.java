@@ -0,0 +1,136 @@
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * A sorted set of disjoint byte intervals [start, end).
+ *
+ * Touching or overlapping intervals are merged on insert, so the footprint is proportional to the number of
+ * gaps rather than to the size of the file. Lookups are O(log n) in the number of intervals and the total
+ * number of covered bytes is kept as a running count.
+ */
+class RangeSet implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final TreeMap<Long, Long> intervals = new TreeMap<>();
+    private long covered = 0;
+
+    /**
+     * marks [start, end) as covered
+     * @param start first byte
+     * @param end one past the last byte
+     */
+    void add(long start, long end) {
+        if (start >= end) {
+            return;
+        }
+        Map.Entry<Long, Long> floor = intervals.floorEntry(start);
+        if (floor != null && floor.getValue() >= start) {
+            if (floor.getValue() >= end) {
+                return;
+            }
+            start = floor.getKey();
+            remove(floor);
+        }
+        Map.Entry<Long, Long> next;
+        while ((next = intervals.ceilingEntry(start)) != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            remove(next);
+        }
+        intervals.put(start, end);
+        covered += end - start;
+    }
+
+    /**
+     * marks [start, end) as not covered, splitting an interval that spans it
+     * @param start first byte
+     * @param end one past the last byte
+     */
+    void remove(long start, long end) {
+        if (start >= end) {
+            return;
+        }
+        Map.Entry<Long, Long> floor = intervals.floorEntry(start);
+        if (floor != null && floor.getValue() > start) {
+            long floorEnd = floor.getValue();
+            remove(floor);
+            if (floor.getKey() < start) {
+                intervals.put(floor.getKey(), start);
+                covered += start - floor.getKey();
+            }
+            if (floorEnd > end) {
+                intervals.put(end, floorEnd);
+                covered += floorEnd - end;
+                return;
+            }
+        }
+        Map.Entry<Long, Long> next;
+        while ((next = intervals.ceilingEntry(start)) != null && next.getKey() < end) {
+            remove(next);
+            if (next.getValue() > end) {
+                intervals.put(end, next.getValue());
+                covered += next.getValue() - end;
+            }
+        }
+    }
+
+    private void remove(Map.Entry<Long, Long> entry) {
+        intervals.remove(entry.getKey());
+        covered -= entry.getValue() - entry.getKey();
+    }
+
+    /**
+     * @param from
+     * @return the first offset >= from that is not covered
+     */
+    long nextMissing(long from) {
+        Map.Entry<Long, Long> floor = intervals.floorEntry(from);
+        if (floor != null && floor.getValue() > from) {
+            return floor.getValue();
+        }
+        return from;
+    }
+
+    /**
+     * @param missing an offset that is not covered
+     * @param limit upper bound for the answer
+     * @return one past the last byte of the gap that contains missing, at most limit
+     */
+    long gapEnd(long missing, long limit) {
+        Long next = intervals.higherKey(missing);
+        return next == null ? limit : Math.min(next, limit);
+    }
+
+    /**
+     * @param start
+     * @param end
+     * @return true if every byte of [start, end) is covered
+     */
+    boolean contains(long start, long end) {
+        Map.Entry<Long, Long> floor = intervals.floorEntry(start);
+        return floor != null && floor.getValue() >= end;
+    }
+
+    /**
+     * @return number of covered bytes
+     */
+    long covered() {
+        return covered;
+    }
+
+    /**
+     * @return number of disjoint intervals
+     */
+    int size() {
+        return intervals.size();
+    }
+
+    /**
+     * @return read-only view of the intervals, start mapped to end
+     */
+    NavigableMap<Long, Long> intervals() {
+        return Collections.unmodifiableNavigableMap(intervals);
+    }
+}
@@ -0,0 +1,81 @@
+import java.io.Serializable;
+
+/**
+ * What a probe learned about a file on a server: its size, whether the server serves byte ranges, the
+ * validators (ETag, Last-Modified) that identify this version of the file, and the URL left after redirects.
+ *
+ * Every trait except the final URL is stored in the file's metadata. A resumed download skips the probe and sends
+ * its ranges with If-Range right away: a server that still has the same version answers 206, and one that changed
+ * it answers 200 with the whole new file, which the getter reports with markChanged(). The final URL is not stored
+ * because a redirect target may be a signed URL that has expired by then, so a resumed download requests the
+ * original URL and follows its redirects again.
+ */
+class ServerTraits implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final long size;
+    final boolean acceptRanges;
+    final String etag;
+    final String lastModified;
+    final String finalUrl;
+    private transient volatile boolean changed;
+
+    /**
+     * @param size
+     * @param acceptRanges
+     * @param etag or null
+     * @param lastModified or null
+     * @param finalUrl or null if it is the requested URL
+     */
+    ServerTraits(long size, boolean acceptRanges, String etag, String lastModified, String finalUrl) {
+        this.size = size;
+        this.acceptRanges = acceptRanges;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.finalUrl = finalUrl;
+    }
+
+    /**
+     * @return the value for If-Range: a strong ETag, or else Last-Modified, or null if there is neither
+     */
+    String validator() {
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return lastModified;
+    }
+
+    /**
+     * @param other traits from a later probe
+     * @return true if both describe the same version of the file
+     */
+    boolean sameVersion(ServerTraits other) {
+        if (size != other.size) {
+            return false;
+        }
+        if (etag != null && other.etag != null) {
+            return etag.equals(other.etag);
+        }
+        if (lastModified != null && other.lastModified != null) {
+            return lastModified.equals(other.lastModified);
+        }
+        return true;
+    }
+
+    /**
+     * records that the server answered a range request with a different version of the file
+     */
+    void markChanged() {
+        changed = true;
+    }
+
+    boolean isChanged() {
+        return changed;
+    }
+
+    @Override
+    public String toString() {
+        return size + " bytes" + (acceptRanges ? "" : ", no ranges") + (etag != null ? ", ETag " + etag : "")
+                + (lastModified != null ? ", Last-Modified " + lastModified : "");
+    }
+}
@@ -1,6 +1,8 @@
-import java.util.concurrent.atomic.*;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * A Token Bucket (https://en.wikipedia.org/wiki/Token_bucket)
@@ -13,47 +15,136 @@ import java.util.concurrent.locks.ReentrantLock;
  * - terminate(): mark the bucket as terminated (used to communicate between threads)
  * - terminated(): return true if the bucket is terminated, false otherwise
  *
+ * Tokens are refilled lazily at bytesPerSecond instead of by a RateLimiter thread: the bucket keeps a single
+ * "theoretical arrival time", the nanoTime at which it would be full again, and a take(n) atomically pushes it
+ * forward by the time n tokens take to arrive (GCRA). A caller whose tokens are not due yet parks until they are,
+ * so there is no lock and no polling. The rate and burst are published together as one immutable Rate, so a take()
+ * never sees the capacity of one rate with the refill speed of another. A take() from a path whose every level
+ * is unlimited touches no shared counter at all.
+ *
+ * Buckets form a tree (e.g. connection -> download and origin -> global): a bucket may have parents, and
+ * take(n) charges n tokens to the bucket and every distinct ancestor in one pass. Each level is a single CAS on
+ * its own clock, the caller then parks once until the latest of the deadlines, so nested limits cost no lock and
+ * waits do not add up across levels. The rate can be changed while the bucket is in use with setRate(), which is
+ * how a BandwidthTree hands spare capacity from one child to another.
  */
 class TokenBucket {
-    long bucketSize;
-    long numOfTokens;
-    Lock bucketLock;
-    boolean terminated;
-
-    TokenBucket(long bucketSize) {
-        this.bucketSize = bucketSize;
-        this.numOfTokens = 0;
+    static final long UNLIMITED = Long.MAX_VALUE;
+    private static final double NANOS_PER_SECOND = 1_000_000_000d;
+    /** Longest single park, so that terminate() releases a waiting take() promptly. */
+    private static final long MAX_PARK_NANOS = 50_000_000;
+
+    private volatile Rate rate;
+    private final AtomicLong fullAt;
+    private final TokenBucket[] path; // this bucket and every distinct ancestor
+    private final LongAdder taken = new LongAdder();
+    volatile boolean terminated;
+
+    /**
+     * creates an unlimited bucket
+     */
+    TokenBucket() {
+        this(UNLIMITED, UNLIMITED);
+    }
+
+    /**
+     * creates an empty bucket that refills at bytesPerSecond up to bucketSize tokens, and also charges parents
+     * @param bucketSize
+     * @param bytesPerSecond
+     * @param parents null entries are ignored
+     */
+    TokenBucket(long bucketSize, long bytesPerSecond, TokenBucket... parents) {
+        this.path = pathOf(this, parents);
         this.terminated = false;
-        this.bucketLock = new ReentrantLock(true);
+        this.fullAt = new AtomicLong();
+        setRate(bucketSize, bytesPerSecond);
+        this.fullAt.set(System.nanoTime() + rate.burstNanos);
+    }
+
+    private static TokenBucket[] pathOf(TokenBucket self, TokenBucket[] parents) {
+        List<TokenBucket> path = new ArrayList<>();
+        path.add(self);
+        for (TokenBucket i : parents) {
+            if (i == null) {
+                continue;
+            }
+            for (TokenBucket j : i.path) {
+                if (!path.contains(j)) {
+                    path.add(j);
+                }
+            }
+        }
+        return path.toArray(new TokenBucket[0]);
     }
 
     /**
-     * removes tokens from the bucket every second
+     * changes the refill rate and capacity, tokens already in the bucket are kept
+     * @param bucketSize
+     * @param bytesPerSecond
+     */
+    void setRate(long bucketSize, long bytesPerSecond) {
+        this.rate = new Rate(bucketSize, bytesPerSecond);
+    }
+
+    /**
+     * removes tokens from the bucket and its ancestors, parking until they are due at every level
      * @param tokens
+     * @return nanoseconds spent waiting for the tokens
      */
-    void take(long tokens) {
-        boolean done = false;
-        while(!done) {
-            bucketLock.lock();
-            try {
-                // checks if there are enough tokens in the bucket
-                if (numOfTokens - tokens >= 0) {
-                    numOfTokens -= tokens;
-                    done = true;
-                }
-            } finally {
-                bucketLock.unlock();
+    long take(long tokens) {
+        long due = 0;
+        boolean limited = false;
+        for (TokenBucket i : path) {
+            Rate rate = i.rate;
+            if (!rate.unlimited) {
+                long levelDue = i.reserve(tokens, rate);
+                due = limited ? Math.max(due, levelDue) : levelDue;
+                limited = true;
             }
+        }
+        if (!limited) {
+            return 0;
+        }
+        for (TokenBucket i : path) {
+            i.taken.add(tokens);
+        }
+        long start = System.nanoTime();
+        long now = start;
+        while (due - now > 0 && !pathTerminated()) {
+            LockSupport.parkNanos(this, Math.min(due - now, MAX_PARK_NANOS));
+            now = System.nanoTime();
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+        }
+        return now - start;
+    }
 
-            if(!done){
-                try {
-                    Thread.sleep(200);
-                }
-                catch (InterruptedException e){
+    /**
+     * pushes this level's clock forward by the time tokens take to arrive
+     * @param tokens
+     * @param rate
+     * @return nanoTime at which the tokens are due
+     */
+    private long reserve(long tokens, Rate rate) {
+        long cost = rate.nanosFor(tokens);
+        while (true) {
+            long now = System.nanoTime();
+            long current = fullAt.get();
+            long next = Math.max(current, now) + cost;
+            if (fullAt.compareAndSet(current, next)) {
+                return next - rate.burstNanos;
+            }
+        }
+    }
 
-                }
+    private boolean pathTerminated() {
+        for (TokenBucket i : path) {
+            if (i.terminated) {
+                return true;
             }
         }
+        return false;
     }
 
     /**
@@ -61,12 +152,18 @@ class TokenBucket {
      * @param tokens
      */
     void add(long tokens) {
-        bucketLock.lock();
-        try {
-            long totalTokens = tokens + numOfTokens;
-            this.numOfTokens = totalTokens > bucketSize ? bucketSize : totalTokens;
-        } finally {
-            bucketLock.unlock();
+        Rate rate = this.rate;
+        if (rate.unlimited) {
+            return;
+        }
+        long credit = rate.nanosFor(tokens);
+        while (true) {
+            long now = System.nanoTime();
+            long current = fullAt.get();
+            long next = Math.max(Math.max(current, now) - credit, now);
+            if (fullAt.compareAndSet(current, next)) {
+                return;
+            }
         }
     }
 
@@ -90,11 +187,51 @@ class TokenBucket {
      * @param tokens
      */
     void set(long tokens) {
-        bucketLock.lock();
-        try {
-            this.numOfTokens = tokens;
-        } finally {
-            bucketLock.unlock();
+        Rate rate = this.rate;
+        if (rate.unlimited) {
+            return;
+        }
+        fullAt.set(System.nanoTime() + rate.burstNanos - rate.nanosFor(Math.min(tokens, rate.bucketSize)));
+    }
+
+    /**
+     * @return true if take() never blocks
+     */
+    boolean isUnlimited() {
+        for (TokenBucket i : path) {
+            if (!i.rate.unlimited) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of tokens taken from this bucket, directly or through a child, while some level of the
+     * taker's path was limited
+     */
+    long getTaken() {
+        return taken.sum();
+    }
+
+    /**
+     * a bucket's capacity and refill speed, replaced as a whole by setRate()
+     */
+    private static final class Rate {
+        final long bucketSize;
+        final long bytesPerSecond;
+        final long burstNanos; // time to refill an empty bucket
+        final boolean unlimited;
+
+        Rate(long bucketSize, long bytesPerSecond) {
+            this.bucketSize = bucketSize;
+            this.bytesPerSecond = bytesPerSecond;
+            this.unlimited = bytesPerSecond == UNLIMITED;
+            this.burstNanos = unlimited ? 0 : nanosFor(bucketSize);
+        }
+
+        long nanosFor(long tokens) {
+            return (long) (tokens * NANOS_PER_SECOND / bytesPerSecond);
         }
     }
 }
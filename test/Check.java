@@ -0,0 +1,76 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A minimal self-check harness, for trees without a build that could pull a test framework in (like Bench for
+ * the benchmarks).
+ *
+ * Each check class registers named cases; a case passes if it returns, and fails on the first exception or
+ * failed expectation. Every case runs even after a failure, and the exit status is the number of failed cases.
+ *
+ * usage: javac -d out src/*.java test/*.java && java -cp out Check [NAME-FILTER]
+ */
+class Check {
+    private static final List<String> failures = new ArrayList<>();
+    private static String filter;
+    private static int passed;
+
+    /**
+     * one case
+     */
+    interface Case {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) {
+        filter = args.length > 0 ? args[0] : null;
+        RangeSetCheck.run();
+        MetadataJournalCheck.run();
+        TokenBucketCheck.run();
+        ChunkQueueCheck.run();
+        ChunkPoolCheck.run();
+        DownloadEngineCheck.run();
+        System.out.printf("%d passed, %d failed\n", passed, failures.size());
+        for (String i : failures) {
+            System.out.println("FAILED " + i);
+        }
+        System.exit(failures.size());
+    }
+
+    /**
+     * runs a case unless the name filter excludes it
+     * @param name
+     * @param body
+     */
+    static void run(String name, Case body) {
+        if (filter != null && !name.contains(filter)) {
+            return;
+        }
+        try {
+            body.run();
+            passed++;
+            System.out.println("ok     " + name);
+        } catch (Throwable e) {
+            failures.add(name + ": " + e);
+            System.out.println("FAILED " + name + ": " + e);
+        }
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    static void equal(long expected, long actual, String what) {
+        if (expected != actual) {
+            throw new AssertionError(what + ": expected " + expected + " but was " + actual);
+        }
+    }
+
+    static void equal(Object expected, Object actual, String what) {
+        if (expected == null ? actual != null : !expected.equals(actual)) {
+            throw new AssertionError(what + ": expected " + expected + " but was " + actual);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ChunkPool: leases sized by class, recycling within a class, and the byte cap, which drops free buffers of other
+ * classes before a lease blocks.
+ */
+class ChunkPoolCheck {
+    private static final int K = 1024;
+
+    static void run() {
+        Check.run("ChunkPool leases the smallest class that fits", () -> {
+            ChunkPool pool = new ChunkPool(4 * K, 64 * K, 0, 1 << 20);
+            Check.equal(4 * K, pool.lease(100).capacity(), "100 bytes");
+            Check.equal(4 * K, pool.lease(4 * K).capacity(), "4 KB");
+            Check.equal(16 * K, pool.lease(4 * K + 1).capacity(), "just over 4 KB");
+            Check.equal(64 * K, pool.lease(64 * K).capacity(), "64 KB");
+            Check.equal(64 * K, pool.lease(1 << 20).capacity(), "more than the largest class");
+            Check.equal(64 * K, pool.getMaxSegmentSize(), "largest class");
+        });
+        Check.run("ChunkPool recycles released buffers within their class", () -> {
+            ChunkPool pool = new ChunkPool(4 * K, 64 * K, 0, 1 << 20);
+            ByteBuffer small = pool.lease(4 * K);
+            ByteBuffer large = pool.lease(64 * K);
+            long allocations = pool.getAllocations();
+            pool.release(small);
+            pool.release(large);
+            Check.check(pool.lease(4 * K) == small, "the 4 KB buffer comes back");
+            Check.check(pool.lease(64 * K) == large, "the 64 KB buffer comes back");
+            Check.equal(allocations, pool.getAllocations(), "no new allocation");
+            Check.equal(2, pool.getInUse(), "in use");
+        });
+        Check.run("ChunkPool drops free buffers of other classes at its cap", () -> {
+            ChunkPool pool = new ChunkPool(4 * K, 64 * K, 0, 64 * K);
+            ByteBuffer[] small = new ByteBuffer[16];
+            for (int i = 0; i < small.length; i++) {
+                small[i] = pool.lease(4 * K);
+            }
+            for (ByteBuffer i : small) {
+                pool.release(i);
+            }
+            Check.equal(64 * K, pool.getBytes(), "at the cap with free 4 KB buffers");
+            ByteBuffer large = pool.lease(64 * K);
+            Check.equal(64 * K, large.capacity(), "a 64 KB lease is served");
+            Check.equal(64 * K, pool.getBytes(), "still at the cap");
+        });
+        Check.run("ChunkPool blocks at its cap until a buffer of the class is released", () -> {
+            ChunkPool pool = new ChunkPool(4 * K, 16 * K, 0, 32 * K);
+            ByteBuffer first = pool.lease(16 * K);
+            pool.lease(16 * K);
+            AtomicReference<ByteBuffer> leased = new AtomicReference<>();
+            Thread getter = new Thread(() -> {
+                try {
+                    leased.set(pool.lease(16 * K));
+                } catch (Exception ignored) {
+                }
+            });
+            getter.start();
+            Thread.sleep(100);
+            Check.check(getter.isAlive(), "lease blocks while every byte is leased");
+            pool.release(first);
+            getter.join(1000);
+            Check.check(leased.get() == first, "lease returns the released buffer");
+            Check.equal(32 * K, pool.getBytes(), "bytes");
+        });
+    }
+}
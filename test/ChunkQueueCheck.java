@@ -0,0 +1,121 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ChunkQueue: the byte budget and the backpressure it puts on getters, release of blocked getters and queued
+ * buffers when the writer fails, the end marker, and the half-budget wakeup of the writer.
+ */
+class ChunkQueueCheck {
+    private static final int SEGMENT = 4096;
+
+    static void run() {
+        Check.run("ChunkQueue counts a chunk with its whole buffer", () -> {
+            ChunkQueue queue = new ChunkQueue(4 * SEGMENT);
+            queue.put(chunk(100));
+            Check.equal(SEGMENT, queue.getBytes(), "bytes held by a 100 byte read");
+        });
+        Check.run("ChunkQueue accepts a chunk larger than the budget into an empty queue", () -> {
+            ChunkQueue queue = new ChunkQueue(SEGMENT);
+            queue.put(new Chunk(ByteBuffer.allocate(4 * SEGMENT), 0, 4 * SEGMENT));
+            Check.equal(1, queue.size(), "chunks");
+        });
+        Check.run("ChunkQueue put blocks over the budget until drained", () -> {
+            ChunkQueue queue = new ChunkQueue(2 * SEGMENT);
+            queue.put(chunk(SEGMENT));
+            queue.put(chunk(SEGMENT));
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            Thread getter = putter(queue, error);
+            Thread.sleep(100);
+            Check.check(getter.isAlive(), "put blocks while the queue is full");
+            Check.equal(2, queue.size(), "chunks while blocked");
+            List<Chunk> drained = new ArrayList<>();
+            Check.equal(2, queue.drainTo(drained), "drained");
+            getter.join(1000);
+            Check.check(!getter.isAlive(), "put returns once drained");
+            Check.equal(null, error.get(), "error");
+            Check.equal(1, queue.size(), "chunks after the put");
+        });
+        Check.run("ChunkQueue fail releases a blocked put with an IOException", () -> {
+            ChunkQueue queue = new ChunkQueue(2 * SEGMENT);
+            queue.put(chunk(SEGMENT));
+            queue.put(chunk(SEGMENT));
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            Thread getter = putter(queue, error);
+            Thread.sleep(100);
+            queue.fail(new IOException("disk full"));
+            getter.join(1000);
+            Check.check(!getter.isAlive(), "put returns once the writer failed");
+            Check.check(error.get() instanceof IOException && error.get().getMessage().contains("disk full"),
+                    "put throws the writer's failure, got " + error.get());
+            try {
+                queue.put(chunk(SEGMENT));
+                Check.check(false, "put after fail throws");
+            } catch (IOException expected) {
+            }
+        });
+        Check.run("ChunkQueue fail returns queued buffers to their pool", () -> {
+            ChunkPool pool = new ChunkPool(SEGMENT, SEGMENT, 4 * SEGMENT, 4 * SEGMENT);
+            ChunkQueue queue = new ChunkQueue(4 * SEGMENT);
+            for (int i = 0; i < 3; i++) {
+                queue.put(new Chunk(pool.lease(SEGMENT), (long) i * SEGMENT, SEGMENT, pool));
+            }
+            Check.equal(3, pool.getInUse(), "leased");
+            queue.fail(new IOException("disk full"));
+            Check.equal(0, pool.getInUse(), "leased after fail");
+            Check.equal(0, queue.size(), "chunks after fail");
+            Check.equal(0, queue.getBytes(), "bytes after fail");
+        });
+        Check.run("ChunkQueue end marker never blocks", () -> {
+            ChunkQueue queue = new ChunkQueue(SEGMENT);
+            queue.put(chunk(SEGMENT));
+            queue.putEndMarker();
+            Check.equal(2, queue.size(), "chunks with the end marker");
+        });
+        Check.run("ChunkQueue wakes the writer at half its budget", () -> {
+            ChunkQueue queue = new ChunkQueue(4 * SEGMENT);
+            Thread writer = new Thread(() -> {
+                try {
+                    queue.awaitFlush(10_000);
+                } catch (InterruptedException ignored) {
+                }
+            });
+            writer.start();
+            queue.put(chunk(SEGMENT));
+            Thread.sleep(100);
+            Check.check(writer.isAlive(), "a quarter of the budget does not wake the writer");
+            queue.put(chunk(SEGMENT));
+            writer.join(1000);
+            Check.check(!writer.isAlive(), "half the budget wakes the writer");
+        });
+        Check.run("ChunkQueue wakes the writer at the end marker", () -> {
+            ChunkQueue queue = new ChunkQueue(4 * SEGMENT);
+            long start = System.nanoTime();
+            queue.put(chunk(100));
+            queue.putEndMarker();
+            queue.awaitFlush(10_000);
+            Check.check(System.nanoTime() - start < 1_000_000_000L, "awaitFlush returns at once");
+        });
+    }
+
+    private static Chunk chunk(int size) {
+        return new Chunk(ByteBuffer.allocate(SEGMENT), 0, size);
+    }
+
+    /**
+     * @return a started thread putting one more chunk, which records what put() threw
+     */
+    private static Thread putter(ChunkQueue queue, AtomicReference<Throwable> error) {
+        Thread thread = new Thread(() -> {
+            try {
+                queue.put(chunk(SEGMENT));
+            } catch (Throwable e) {
+                error.set(e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,123 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * DownloadEngine: a destination stays taken while a cancelled download is still stopping, and is free once its
+ * run returned. The file is served by a loopback HttpServer and the downloads are rate limited so they are still
+ * running when cancelled.
+ */
+class DownloadEngineCheck {
+    private static final int SIZE = 4 << 20;
+
+    static void run() {
+        Check.run("DownloadEngine keeps a cancelled destination until its run returned", () -> {
+            HttpServer server = serve();
+            Path dir = Files.createTempDirectory("idc-check-engine");
+            String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/file.bin";
+            Path destination = dir.resolve("file.bin");
+            try (DownloadEngine engine = new DownloadEngine(1, 2, 256L * 1024)) {
+                DownloadHandle first = engine.submit(url, destination, 1, null);
+                waitFor(() -> first.getProgress() != null, "the download started writing");
+                first.cancel();
+                Check.check(first.getFuture().isCancelled(), "the future is cancelled at once");
+                try {
+                    DownloadHandle again = engine.submit(url, destination, 1, null);
+                    Check.check(again == first, "a second download of a stopping destination");
+                } catch (IllegalStateException expected) {
+                }
+                waitFor(() -> engine.getPending() == 0, "the run returned");
+                Check.equal(DownloadHandle.State.CANCELLED, first.getState(), "state");
+                DownloadHandle resumed = engine.submit(url, destination, 1, null);
+                Check.check(resumed != first, "a new download once the run returned");
+                resumed.cancel();
+            } finally {
+                server.stop(0);
+                delete(dir);
+            }
+        });
+        Check.run("DownloadEngine frees the destination of a paused download that is cancelled", () -> {
+            HttpServer server = serve();
+            Path dir = Files.createTempDirectory("idc-check-engine");
+            String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/file.bin";
+            try (DownloadEngine engine = new DownloadEngine(1, 1, 256L * 1024)) {
+                DownloadHandle first = engine.submit(url, dir.resolve("file.bin"), 1, null);
+                first.pause();
+                first.cancel();
+                waitFor(() -> engine.getPending() == 0, "the paused download ended");
+                try {
+                    first.getFuture().get(1, TimeUnit.SECONDS);
+                    Check.check(false, "the future is cancelled");
+                } catch (CancellationException expected) {
+                }
+            } finally {
+                server.stop(0);
+                delete(dir);
+            }
+        });
+    }
+
+    /**
+     * @return a server of SIZE bytes at /file.bin, answering single ranges with 206
+     */
+    private static HttpServer serve() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/file.bin", DownloadEngineCheck::respond);
+        server.start();
+        return server;
+    }
+
+    private static void respond(HttpExchange exchange) throws IOException {
+        long start = 0;
+        long end = SIZE - 1;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null) {
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            start = Long.parseLong(bounds[0]);
+            end = bounds.length > 1 ? Math.min(end, Long.parseLong(bounds[1])) : end;
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + SIZE);
+        }
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.getResponseHeaders().set("Content-Length", String.valueOf(end - start + 1));
+            exchange.sendResponseHeaders(range != null ? 206 : 200, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(range != null ? 206 : 200, end - start + 1);
+        byte[] data = new byte[8192];
+        try (OutputStream body = exchange.getResponseBody()) {
+            for (long left = end - start + 1; left > 0; left -= data.length) {
+                body.write(data, 0, (int) Math.min(data.length, left));
+            }
+        } catch (IOException e) {
+            //the client closed the connection
+        }
+    }
+
+    interface Condition {
+        boolean holds();
+    }
+
+    private static void waitFor(Condition condition, String what) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.holds()) {
+            Check.check(System.currentTimeMillis() < deadline, "timed out waiting until " + what);
+            Thread.sleep(10);
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(i -> i.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,150 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MetadataJournal: a round trip through append and load, recovery from a torn or corrupt tail, background
+ * compaction, and the order of the block hashes in a snapshot.
+ */
+class MetadataJournalCheck {
+    private static final int RANGE_RECORD_SIZE = 4 + 1 + 16 + 4;
+    private static int files;
+
+    static void run() {
+        Check.run("MetadataJournal round trip", () -> {
+            DownloadableMetadata metadata = newMetadata(1 << 20);
+            try (MetadataJournal journal = MetadataJournal.open(metadata)) {
+                journal.append(chunks(0, 4096, 8192, 4096));
+                journal.append(chunks(4096, 4096));
+                journal.append(chunks(65536, 100));
+            }
+            DownloadableMetadata loaded = MetadataJournal.load(metadata.getMetadataFilename());
+            Check.equal(metadata.getUrl(), loaded.getUrl(), "url");
+            Check.equal(1 << 20, loaded.getFilesize(), "file size");
+            Check.equal("{0=12288, 65536=65636}", intervals(loaded), "ranges");
+            delete(metadata);
+        });
+        Check.run("MetadataJournal drops a torn last record", () -> {
+            DownloadableMetadata metadata = newMetadata(1 << 20);
+            try (MetadataJournal journal = MetadataJournal.open(metadata)) {
+                journal.append(chunks(0, 4096));
+                journal.append(chunks(8192, 4096));
+            }
+            File file = new File(metadata.getMetadataFilename());
+            long length = file.length();
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(length - 3);
+            }
+            DownloadableMetadata loaded = MetadataJournal.load(file.getPath());
+            Check.equal("{0=4096}", intervals(loaded), "ranges");
+            Check.equal(length - RANGE_RECORD_SIZE, file.length(), "journal truncated to the last good record");
+            delete(metadata);
+        });
+        Check.run("MetadataJournal stops at a record with a bad checksum", () -> {
+            DownloadableMetadata metadata = newMetadata(1 << 20);
+            try (MetadataJournal journal = MetadataJournal.open(metadata)) {
+                journal.append(chunks(0, 4096));
+                journal.append(chunks(8192, 4096));
+                journal.append(chunks(16384, 4096));
+            }
+            File file = new File(metadata.getMetadataFilename());
+            long length = file.length();
+            long secondRecord = length - 2 * RANGE_RECORD_SIZE;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(secondRecord + 4 + 1 + 3); //a byte of the second range's start offset
+                int value = raf.read();
+                raf.seek(secondRecord + 4 + 1 + 3);
+                raf.write(value ^ 0x40);
+            }
+            DownloadableMetadata loaded = MetadataJournal.load(file.getPath());
+            Check.equal("{0=4096}", intervals(loaded), "ranges before the corrupt record");
+            Check.equal(secondRecord, file.length(), "journal truncated at the corrupt record");
+            delete(metadata);
+        });
+        Check.run("MetadataJournal rejects a file that is not a journal", () -> {
+            DownloadableMetadata metadata = newMetadata(1 << 20);
+            File file = new File(metadata.getMetadataFilename());
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.writeInt(0xACED0005); //serialized metadata of older versions
+            }
+            Check.check(MetadataJournal.load(file.getPath()) == null, "not loaded as a journal");
+            delete(metadata);
+        });
+        Check.run("MetadataJournal compacts many records into a snapshot", () -> {
+            DownloadableMetadata metadata = newMetadata(1 << 24);
+            File file = new File(metadata.getMetadataFilename());
+            try (MetadataJournal journal = MetadataJournal.open(metadata)) {
+                int records = 1100;
+                for (int i = 0; i < records; i++) {
+                    List<Chunk> chunk = chunks((long) i * 4096, 4096);
+                    metadata.addChunkList(chunk);
+                    journal.append(chunk);
+                }
+                //1024 records trigger a compaction, the records appended while it ran stay behind the snapshot
+                long uncompacted = (long) records * RANGE_RECORD_SIZE;
+                long deadline = System.currentTimeMillis() + 10000;
+                while (file.length() > uncompacted / 4 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                Check.check(file.length() < uncompacted / 4, "compacted to " + file.length() + " bytes");
+                journal.append(chunks((long) records * 4096, 4096));
+            }
+            DownloadableMetadata loaded = MetadataJournal.load(file.getPath());
+            Check.equal("{0=" + 1101 * 4096 + "}", intervals(loaded), "ranges");
+            delete(metadata);
+        });
+        Check.run("MetadataJournal snapshot keeps block hashes in the order they were computed", () -> {
+            DownloadableMetadata metadata = newMetadata(6L << 20);
+            BlockHashes hashes = metadata.getBlockHashes();
+            for (int i : new int[]{5, 0, 4, 1, 3, 2}) {
+                hashes.load(hashes.getBlockSize(), i, new byte[BlockHashes.HASH_SIZE]);
+            }
+            MetadataJournal.open(metadata).close(); //a snapshot
+            DownloadableMetadata loaded = MetadataJournal.load(metadata.getMetadataFilename());
+            Check.equal("[5, 0, 4, 1, 3, 2]", loaded.getBlockHashes().hashedByRecency().toString(), "hash order");
+            delete(metadata);
+        });
+    }
+
+    private static DownloadableMetadata newMetadata(long size) {
+        DownloadableMetadata metadata = new DownloadableMetadata("http://check/idc-check-journal-" + (files++) + ".bin", size, 4096);
+        delete(metadata);
+        return metadata;
+    }
+
+    /**
+     * @param offsetsAndSizes offset, size, offset, size...
+     */
+    private static List<Chunk> chunks(long... offsetsAndSizes) {
+        List<Chunk> chunks = new ArrayList<>();
+        for (int i = 0; i < offsetsAndSizes.length; i += 2) {
+            int size = (int) offsetsAndSizes[i + 1];
+            chunks.add(new Chunk(ByteBuffer.allocate(size), offsetsAndSizes[i], size));
+        }
+        return chunks;
+    }
+
+    private static String intervals(DownloadableMetadata metadata) {
+        metadata.lock.lock();
+        try {
+            StringBuilder text = new StringBuilder("{");
+            for (Map.Entry<Long, Long> i : metadata.getDoneRanges().intervals().entrySet()) {
+                text.append(text.length() > 1 ? ", " : "").append(i.getKey()).append('=').append(i.getValue());
+            }
+            return text.append('}').toString();
+        } finally {
+            metadata.lock.unlock();
+        }
+    }
+
+    private static void delete(DownloadableMetadata metadata) {
+        for (String i : Arrays.asList(metadata.getMetadataFilename(), metadata.getMetadataFilename() + ".tmp", metadata.getFilename())) {
+            new File(i).delete();
+        }
+    }
+}
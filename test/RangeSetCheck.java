@@ -0,0 +1,128 @@
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * RangeSet: merging on insert, the running covered count, and the gap lookups the scheduler relies on.
+ */
+class RangeSetCheck {
+
+    static void run() {
+        Check.run("RangeSet disjoint ranges stay apart", () -> {
+            RangeSet set = new RangeSet();
+            set.add(0, 10);
+            set.add(20, 30);
+            Check.equal(2, set.size(), "intervals");
+            Check.equal(20, set.covered(), "covered");
+        });
+        Check.run("RangeSet touching ranges merge", () -> {
+            RangeSet set = new RangeSet();
+            set.add(10, 20);
+            set.add(0, 10);
+            set.add(20, 25);
+            Check.equal(1, set.size(), "intervals");
+            Check.equal(25, set.covered(), "covered");
+            Check.check(set.contains(0, 25), "covers [0, 25)");
+        });
+        Check.run("RangeSet overlapping and contained ranges count once", () -> {
+            RangeSet set = new RangeSet();
+            set.add(0, 100);
+            set.add(50, 150);
+            set.add(10, 20);
+            set.add(0, 150);
+            Check.equal(1, set.size(), "intervals");
+            Check.equal(150, set.covered(), "covered");
+        });
+        Check.run("RangeSet a range spanning several intervals swallows them", () -> {
+            RangeSet set = new RangeSet();
+            for (long i = 0; i < 10; i++) {
+                set.add(i * 100, i * 100 + 10);
+            }
+            set.add(5, 905);
+            Check.equal(1, set.size(), "intervals");
+            Check.equal(910, set.covered(), "covered");
+            Check.equal(0L, (long) set.intervals().firstKey(), "start");
+            Check.equal(910L, (long) set.intervals().get(0L), "end");
+        });
+        Check.run("RangeSet empty and inverted ranges are ignored", () -> {
+            RangeSet set = new RangeSet();
+            set.add(10, 10);
+            set.add(20, 5);
+            Check.equal(0, set.size(), "intervals");
+            Check.equal(0, set.covered(), "covered");
+        });
+        Check.run("RangeSet gap lookups", () -> {
+            RangeSet set = new RangeSet();
+            set.add(0, 10);
+            set.add(20, 30);
+            Check.equal(10, set.nextMissing(0), "nextMissing inside the first interval");
+            Check.equal(15, set.nextMissing(15), "nextMissing in the gap");
+            Check.equal(30, set.nextMissing(25), "nextMissing inside the second interval");
+            Check.equal(20, set.gapEnd(10, 100), "gapEnd before the second interval");
+            Check.equal(18, set.gapEnd(10, 18), "gapEnd at the limit");
+            Check.equal(100, set.gapEnd(30, 100), "gapEnd after the last interval");
+            Check.check(!set.contains(5, 15), "does not cover across the gap");
+        });
+        Check.run("RangeSet remove splits and trims intervals", () -> {
+            RangeSet set = new RangeSet();
+            set.add(0, 100);
+            set.add(200, 300);
+            set.remove(40, 60);
+            Check.equal(3, set.size(), "intervals after a split");
+            Check.equal(180, set.covered(), "covered after a split");
+            Check.check(set.contains(0, 40) && set.contains(60, 100), "both sides are kept");
+            set.remove(80, 250);
+            Check.equal(3, set.size(), "intervals after trimming two");
+            Check.equal(40 + 20 + 50, set.covered(), "covered after trimming two");
+            Check.equal(80, set.nextMissing(60), "next missing after the trimmed end");
+            set.remove(0, 40);
+            set.remove(300, 400);
+            Check.equal(2, set.size(), "intervals after removing one exactly");
+            Check.equal(0, set.nextMissing(0), "start is missing");
+        });
+        Check.run("RangeSet matches a bitmap under random inserts and removes", () -> {
+            Random random = new Random(7);
+            RangeSet set = new RangeSet();
+            BitSet bits = new BitSet();
+            for (int i = 0; i < 20000; i++) {
+                int start = random.nextInt(10000);
+                int end = start + random.nextInt(256);
+                if (random.nextInt(3) == 0) {
+                    set.remove(start, end);
+                    bits.clear(start, end);
+                } else {
+                    set.add(start, end);
+                    bits.set(start, end);
+                }
+            }
+            Check.equal(bits.cardinality(), set.covered(), "covered");
+            for (Map.Entry<Long, Long> i : set.intervals().entrySet()) {
+                Check.equal((long) i.getValue(), bits.nextClearBit(i.getKey().intValue()), "interval end at " + i.getKey());
+                Check.check(i.getKey() == 0 || !bits.get(i.getKey().intValue() - 1), "interval starts after a gap");
+            }
+            Check.equal(bits.cardinality(), set.intervals().entrySet().stream().mapToLong(i -> i.getValue() - i.getKey()).sum(), "intervals add up");
+        });
+        Check.run("RangeSet matches a bitmap under random inserts", () -> {
+            Random random = new Random(42);
+            RangeSet set = new RangeSet();
+            BitSet bits = new BitSet();
+            for (int i = 0; i < 20000; i++) {
+                int start = random.nextInt(100000);
+                int end = start + random.nextInt(64);
+                set.add(start, end);
+                bits.set(start, end);
+                if (i % 1000 == 0) {
+                    Check.equal(bits.cardinality(), set.covered(), "covered after " + i + " inserts");
+                }
+            }
+            Check.equal(bits.cardinality(), set.covered(), "covered");
+            long previousEnd = -1;
+            for (Map.Entry<Long, Long> i : set.intervals().entrySet()) {
+                Check.check(i.getKey() > previousEnd, "intervals are disjoint and not touching at " + i.getKey());
+                Check.check(bits.get(i.getKey().intValue()) && bits.get(i.getValue().intValue() - 1), "interval is covered");
+                Check.check(!bits.get(i.getValue().intValue()), "interval ends at a gap");
+                previousEnd = i.getValue();
+            }
+        });
+    }
+}
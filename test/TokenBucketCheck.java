@@ -0,0 +1,76 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TokenBucket: GCRA pacing at the configured rate, bursts up to the bucket size after idle time and no more,
+ * nested limits, rate changes, and termination releasing a waiting caller.
+ */
+class TokenBucketCheck {
+    private static final long RATE = 1 << 20; //bytes per second
+    private static final long MILLIS = 1_000_000;
+
+    static void run() {
+        Check.run("TokenBucket unlimited take never waits", () -> {
+            TokenBucket bucket = new TokenBucket();
+            long start = System.nanoTime();
+            for (int i = 0; i < 1_000_000; i++) {
+                Check.equal(0, bucket.take(4096), "wait");
+            }
+            Check.check(System.nanoTime() - start < 1000 * MILLIS, "a million takes in under a second");
+            Check.check(bucket.isUnlimited(), "unlimited");
+            Check.equal(0, bucket.getTaken(), "an unlimited path counts nothing");
+        });
+        Check.run("TokenBucket paces takes at its rate", () -> {
+            TokenBucket bucket = new TokenBucket(64 * 1024, RATE);
+            long start = System.nanoTime();
+            for (int i = 0; i < 64; i++) {
+                bucket.take(16 * 1024); //1 MB in all
+            }
+            long elapsed = System.nanoTime() - start;
+            Check.check(elapsed > 900 * MILLIS && elapsed < 1300 * MILLIS, "1 MB at 1 MB/s took " + elapsed / MILLIS + " ms");
+        });
+        Check.run("TokenBucket allows a burst of one bucket after idling", () -> {
+            TokenBucket bucket = new TokenBucket(100 * 1024, RATE);
+            Thread.sleep(500); //refills the bucket, and more
+            long burst = bucket.take(100 * 1024);
+            Check.check(burst < 5 * MILLIS, "a full bucket is taken at once, waited " + burst / MILLIS + " ms");
+            long next = bucket.take(100 * 1024);
+            Check.check(next > 80 * MILLIS && next < 200 * MILLIS, "the idle time beyond one bucket is not banked, waited " + next / MILLIS + " ms");
+        });
+        Check.run("TokenBucket waits for the slowest level of the tree", () -> {
+            TokenBucket global = new TokenBucket(16 * 1024, RATE);
+            TokenBucket download = new TokenBucket(TokenBucket.UNLIMITED, TokenBucket.UNLIMITED, global);
+            TokenBucket connection = new TokenBucket(16 * 1024, 4 * RATE, download, global);
+            long start = System.nanoTime();
+            for (int i = 0; i < 32; i++) {
+                connection.take(16 * 1024); //512 KB
+            }
+            long elapsed = System.nanoTime() - start;
+            Check.check(elapsed > 400 * MILLIS && elapsed < 700 * MILLIS, "512 KB under a 1 MB/s parent took " + elapsed / MILLIS + " ms");
+            Check.equal(512 * 1024, global.getTaken(), "tokens charged to the parent once");
+            Check.check(!connection.isUnlimited(), "limited through its parent");
+        });
+        Check.run("TokenBucket follows a rate change", () -> {
+            TokenBucket bucket = new TokenBucket(16 * 1024, RATE);
+            bucket.setRate(16 * 1024, 4 * RATE);
+            long start = System.nanoTime();
+            for (int i = 0; i < 64; i++) {
+                bucket.take(16 * 1024); //1 MB
+            }
+            long elapsed = System.nanoTime() - start;
+            Check.check(elapsed > 200 * MILLIS && elapsed < 400 * MILLIS, "1 MB at 4 MB/s took " + elapsed / MILLIS + " ms");
+            bucket.setRate(TokenBucket.UNLIMITED, TokenBucket.UNLIMITED);
+            Check.equal(0, bucket.take(RATE), "no wait once unlimited");
+        });
+        Check.run("TokenBucket terminate releases a waiting take", () -> {
+            TokenBucket bucket = new TokenBucket(1024, 1024);
+            AtomicLong waited = new AtomicLong(-1);
+            Thread taker = new Thread(() -> waited.set(bucket.take(60 * 1024))); //a minute of tokens
+            taker.start();
+            Thread.sleep(100);
+            bucket.terminate();
+            taker.join(1000);
+            Check.check(!taker.isAlive(), "take returned after terminate");
+            Check.check(waited.get() < 500 * MILLIS, "waited " + waited.get() / MILLIS + " ms");
+        });
+    }
+}